@@ -1,9 +1,17 @@
 package se.embargo.retroboy;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import se.embargo.core.concurrent.Parallel;
 import se.embargo.core.graphic.Bitmaps;
+import se.embargo.retroboy.filter.BitmapImageBuffer;
+import se.embargo.retroboy.filter.CompositeFilter;
 import se.embargo.retroboy.filter.IImageFilter;
 import se.embargo.retroboy.filter.YuvFilter;
 import android.content.Context;
@@ -41,16 +49,33 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 	private long _framestat = 0;
 	private long _laststat = 0;
 	
-	private final ExecutorService _executor = Executors.newFixedThreadPool(1);
-	private final FilterTask _task = new FilterTask();
+	/**
+	 * One single threaded executor per pipeline stage, frames pass through 
+	 * the stages in order so they're always presented in sequence.
+	 */
+	private final List<ExecutorService> _stages = new ArrayList<ExecutorService>();
+	private final Paint _paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	
+	/**
+	 * Maximum number of frames being processed at once.
+	 */
+	private int _pipelineDepth = Parallel.getNumberOfCores() > 1 ? 2 : 1;
+	private int _inflight = 0;
 	
 	private enum State { READY, WORKING };
-	private State _taskState = State.READY, _inputState = State.WORKING;
+	private State _inputState = State.WORKING;
 
 	/**
-	 * Camera input and filter work buffers
+	 * Camera input buffer
 	 */
-	private byte[] _input, _output;
+	private byte[] _input;
+	
+	/**
+	 * Image buffers and camera buffers not currently in the pipeline
+	 */
+	private final Queue<BitmapImageBuffer> _buffers = new ArrayDeque<BitmapImageBuffer>();
+	private final Queue<byte[]> _frames = new ArrayDeque<byte[]>();
+	private long _seqno = 0;
 	
 	/**
 	 * Generation count used to avoid rendering frames from previous state
@@ -105,8 +130,8 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 
 			// Allocate work buffers
 			_input = new byte[_buffersize];
-			_output = new byte[_buffersize];
 			_inputState = State.WORKING;
+			_frames.clear();
 			
 			// Visible dummy view to make sure that Camera actually delivers preview frames
 			_dummy.setVisibility(VISIBLE);
@@ -153,6 +178,16 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 		return _filter;
 	}
 	
+	/**
+	 * Sets the maximum number of frames in flight. A depth of 1 processes one 
+	 * frame at a time, while larger depths lets consecutive frames occupy 
+	 * different filter stages concurrently.
+	 * @param depth	Number of frames allowed in the pipeline
+	 */
+	public synchronized void setPipelineDepth(int depth) {
+		_pipelineDepth = Math.max(depth, 1);
+	}
+	
 	private synchronized void initTransform() {
 		Log.i(TAG, "Initializing the transform matrix");
 		
@@ -244,89 +279,142 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 			handle.camera.addCallbackBuffer(_input);
 			_input = data;
 			_inputState = State.READY;
-			_task.tryProcess();
+			tryProcess();
 		}
 	}
 	
-	private class FilterTask implements Runnable {
-		private IImageFilter _taskFilter;
-		private IImageFilter.ImageBuffer _buffer;
-		private final Paint _paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-		private long _taskGeneration;
+	/**
+	 * Feeds the latest camera frame into the pipeline if there's room for it
+	 */
+	private synchronized void tryProcess() {
+		if (_inputState != State.READY || _inflight >= _pipelineDepth) {
+			return;
+		}
 		
-		public void tryProcess() {
-			if (_taskState != State.READY || _inputState != State.READY) {
-				return;
-			}
-			
-			// Check if buffer is still valid for this frame
-			if (_buffer == null || _buffer.framewidth != _previewSize.width || _buffer.frameheight != _previewSize.height) {
-				Log.d(TAG, "Allocating ImageBuffer for " + _previewSize.width + "x" + _previewSize.height + " pixels (" + _buffer + ")");
-				_buffer = new IImageFilter.ImageBuffer(_previewSize.width, _previewSize.height);
-			}
-			
-			// Reinitialize the buffer with the new data
-			_taskFilter = _filter;
-			_buffer.reset(_input);
-			_input = _output;
-			_taskState = State.WORKING;
-			_inputState = State.WORKING;
-			
-			// Start processing
-			_taskGeneration = _generation;
-			_executor.submit(this);
+		// Check if buffer is still valid for this frame
+		BitmapImageBuffer buffer = _buffers.poll();
+		if (buffer == null || buffer.framewidth != _previewSize.width || buffer.frameheight != _previewSize.height) {
+			Log.d(TAG, "Allocating ImageBuffer for " + _previewSize.width + "x" + _previewSize.height + " pixels (" + buffer + ")");
+			buffer = new BitmapImageBuffer(_previewSize.width, _previewSize.height);
+		}
+		
+		// Reinitialize the buffer with the new data
+		buffer.reset(_input);
+		buffer.seqno = ++_seqno;
+		_input = _frames.poll();
+		if (_input == null) {
+			_input = new byte[_buffersize];
+		}
+		
+		_inputState = State.WORKING;
+		_inflight++;
+		
+		// Start processing
+		submit(0, new FrameTask(buffer, getStages(_filter), _generation));
+	}
+	
+	private synchronized void submit(int stage, Runnable task) {
+		while (_stages.size() <= stage) {
+			_stages.add(Executors.newSingleThreadExecutor());
+		}
+		
+		_stages.get(stage).submit(task);
+	}
+	
+	/**
+	 * Returns a buffer from the pipeline and starts on the next frame
+	 */
+	private synchronized void release(BitmapImageBuffer buffer) {
+		// Release camera buffer for reuse
+		if (buffer.frame != null && buffer.frame.length == _buffersize) {
+			_frames.offer(buffer.frame);
+		}
+		
+		buffer.frame = null;
+		_buffers.offer(buffer);
+		_inflight--;
+		
+		// Check if next frame is already available
+		tryProcess();
+	}
+	
+	private static List<IImageFilter> getStages(IImageFilter filter) {
+		if (filter instanceof CompositeFilter) {
+			return ((CompositeFilter)filter).getStages();
+		}
+		
+		return Collections.singletonList(filter);
+	}
+	
+	/**
+	 * Moves a frame through the filter stages and draws it onto the surface
+	 */
+	private class FrameTask implements Runnable {
+		private final BitmapImageBuffer _buffer;
+		private final List<IImageFilter> _taskFilters;
+		private final long _taskGeneration;
+		private int _stage = 0;
+		
+		public FrameTask(BitmapImageBuffer buffer, List<IImageFilter> filters, long generation) {
+			_buffer = buffer;
+			_taskFilters = filters;
+			_taskGeneration = generation;
 		}
 		
 		@Override
 		public void run() {
+			boolean done = true;
+			
 			try {
-				// Filter the preview image
-				_taskFilter.accept(_buffer);
-				
-				// Check frame sequence number and drop out-of-sequence frames
-				synchronized (CameraPreview.this) {
-					// Check if camera has been switched
-					if (_taskGeneration != _generation) {
-						return;
-					}
-
-					Canvas canvas = null;
-					try {
-						// Release buffer back to camera queue
-						_output = _buffer.frame;
-						_buffer.frame = null;
-	
-						// Calculate the framerate
-						if (++_framestat >= 25) {
-							long ts = System.nanoTime();
-							Log.d(TAG, "Framerate: " + ((double)_framestat / (((double)ts - (double)_laststat) / 1000000000d)) + ", threshold: " + _buffer.threshold);
-							
-							_framestat = 0;
-							_laststat = ts;
-						}
-	
-						// Draw and transform camera frame (must not touch mutable CameraPreview state when not holding lock)
-						canvas = _holder.lockCanvas();
-						if (canvas != null) {
-							canvas.drawBitmap(_buffer.bitmap, _transform.matrix, _paint);
-						}
-					}
-					finally {
-						// Switch to next buffer
-						if (canvas != null) {
-							_holder.unlockCanvasAndPost(canvas);
-						}
-					}
+				if (_stage < _taskFilters.size()) {
+					// Apply this stage and hand over to the next stage
+					_taskFilters.get(_stage).accept(_buffer);
+					submit(++_stage, this);
+					done = false;
+				}
+				else {
+					draw();
 				}
 			}
 			catch (Exception e) {
 				Log.e(TAG, "Unexpected error processing frame", e);
 			}
 			finally {
-				synchronized (CameraPreview.this) {				
-					// Check if next frame is already available
-					_taskState = State.READY;
-					tryProcess();
+				if (done) {
+					release(_buffer);
+				}
+			}
+		}
+		
+		private void draw() {
+			synchronized (CameraPreview.this) {
+				// Check if camera has been switched
+				if (_taskGeneration != _generation) {
+					return;
+				}
+
+				Canvas canvas = null;
+				try {
+					// Calculate the framerate
+					if (++_framestat >= 25) {
+						long ts = System.nanoTime();
+						Log.d(TAG, "Framerate: " + ((double)_framestat / (((double)ts - (double)_laststat) / 1000000000d)) + ", threshold: " + _buffer.threshold);
+						
+						_framestat = 0;
+						_laststat = ts;
+					}
+
+					// Draw and transform camera frame (must not touch mutable CameraPreview state when not holding lock)
+					canvas = _holder.lockCanvas();
+					if (canvas != null) {
+						canvas.drawBitmap(_buffer.bitmap, _transform.matrix, _paint);
+					}
+				}
+				finally {
+					// Switch to next buffer
+					if (canvas != null) {
+						_holder.unlockCanvasAndPost(canvas);
+					}
 				}
 			}
 		}
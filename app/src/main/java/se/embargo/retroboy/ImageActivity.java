@@ -5,6 +5,7 @@ import java.io.File;
 import se.embargo.core.concurrent.ProgressTask;
 import se.embargo.core.graphic.Bitmaps;
 import se.embargo.core.widget.ListPreferenceDialog;
+import se.embargo.retroboy.filter.BitmapImageBuffer;
 import se.embargo.retroboy.filter.CompositeFilter;
 import se.embargo.retroboy.filter.IImageFilter;
 import se.embargo.retroboy.filter.ImageBitmapFilter;
@@ -453,7 +454,7 @@ public class ImageActivity extends Activity {
 			boolean autoexposure = "auto".equals(autoexposurevalue);
 			
 			// Create the image filter pipeline
-			IImageFilter.ImageBuffer buffer = new IImageFilter.ImageBuffer(input);
+			BitmapImageBuffer buffer = new BitmapImageBuffer(input);
 			CompositeFilter filter = new CompositeFilter();
 			
 			IImageFilter effect = Pictures.createEffectFilter(ImageActivity.this);
@@ -16,11 +16,13 @@ import se.embargo.core.graphic.color.IIndexedPalette;
 import se.embargo.core.graphic.color.IPalette;
 import se.embargo.core.widget.ListPreferenceDialog;
 import se.embargo.core.widget.SeekBarDialog;
+import se.embargo.retroboy.filter.BitmapImageBuffer;
 import se.embargo.retroboy.filter.CompositeFilter;
 import se.embargo.retroboy.filter.IImageFilter;
 import se.embargo.retroboy.filter.ImageBitmapFilter;
 import se.embargo.retroboy.filter.TransformFilter;
 import se.embargo.retroboy.filter.YuvFilter;
+import se.embargo.retroboy.graphic.AutoExposure;
 import se.embargo.retroboy.widget.PreferenceListAdapter;
 import se.embargo.retroboy.widget.PreferenceListAdapter.ArrayPreferenceItem;
 import se.embargo.retroboy.widget.PreferenceListAdapter.PreferenceItem;
@@ -297,6 +299,12 @@ public class MainActivity extends Activity {
 		_detailedPreferenceAdapter.add(new PreferenceListAdapter.ArrayPreferenceItem(this, _prefs,
 				Pictures.PREF_FOCUSMARKER, R.string.pref_focusmarker_default, R.string.menu_option_focusmarker, 
 				R.array.pref_focusmarker_labels, R.array.pref_focusmarker_values));
+		_detailedPreferenceAdapter.add(new PreferenceListAdapter.ArrayPreferenceItem(this, _prefs,
+				Pictures.PREF_VIDEOFORMAT, R.string.pref_videoformat_default, R.string.menu_option_videoformat, 
+				R.array.pref_videoformat_labels, R.array.pref_videoformat_values));
+		_detailedPreferenceAdapter.add(new PreferenceListAdapter.ArrayPreferenceItem(this, _prefs,
+				Pictures.PREF_DOWNSAMPLE, R.string.pref_downsample_default, R.string.menu_option_downsample, 
+				R.array.pref_downsample_labels, R.array.pref_downsample_values));
 
 		_detailedPreferenceAdapter.add(new OrientationPreferenceItem(
 			Pictures.PREF_ORIENTATION, R.string.pref_orientation_default, R.string.menu_option_orientation, 
@@ -603,6 +611,7 @@ public class MainActivity extends Activity {
 		// Get the resolution and contrast from preferences
 		Pictures.Resolution resolution = Pictures.getResolution(this, _prefs);
 		int contrast = Pictures.getContrast(this, _prefs);
+		YuvFilter.Downsample downsample = Pictures.getDownsample(this, _prefs);
 		
 		// Check the auto exposure setting
 		String autoexposurevalue = _prefs.getString(Pictures.PREF_AUTOEXPOSURE, getResources().getString(R.string.pref_autoexposure_default));
@@ -610,11 +619,17 @@ public class MainActivity extends Activity {
 
 		// Create the image filter pipeline
 		CompositeFilter filter = new CompositeFilter();
-		_effectFilter = Pictures.createEffectFilter(this);
-		filter.add(new YuvFilter(resolution.width, resolution.height, contrast, _effectFilter.isColorFilter(), autoexposure));
+		_effectFilter = Pictures.createEffectFilter(this, true);
+		
+		// Smooth the threshold over recent frames to avoid flicker, sampling every other row is plenty for a histogram
+		AutoExposure exposure = autoexposure ? new AutoExposure(0.75, 2) : null;
+		filter.add(new YuvFilter(resolution.width, resolution.height, contrast, _effectFilter.isColorFilter(), exposure, downsample));
 		filter.add(_effectFilter);
 		filter.add(new ImageBitmapFilter());
 		filter.add(_videoRecorder);
+		
+		// Decode and dither in a single pass, the preview can live with a threshold one frame behind
+		filter.setFused(true);
 		_preview.setFilter(filter);
 	}
 	
@@ -824,7 +839,7 @@ public class MainActivity extends Activity {
 					if (handle != null && !_videoRecorder.isRecording()) {
 						IPalette palette = _preview.getFilter().getPalette();
 						IIndexedPalette indexed = (palette instanceof IIndexedPalette) ? (IIndexedPalette)palette : null;
-						_videoRecorder.record(getTransform(handle), indexed);
+						_videoRecorder.record(getTransform(handle), indexed, Pictures.getVideoFormat(MainActivity.this, _prefs));
 						_prevEvent = System.currentTimeMillis();
 					}
 					else {
@@ -908,12 +923,13 @@ public class MainActivity extends Activity {
 		// Get the resolution and contrast from preferences
 		Pictures.Resolution resolution = Pictures.getResolution(MainActivity.this, _prefs);
 		int contrast = Pictures.getContrast(MainActivity.this, _prefs);
+		YuvFilter.Downsample downsample = Pictures.getDownsample(MainActivity.this, _prefs);
 
 		// Check for orientation override
 		int orientation = Pictures.getCameraOrientation(_prefs, handle.info, handle.id);
 		
-		// Create the image filter pipeline
-		YuvFilter yuvFilter = new YuvFilter(resolution.width, resolution.height, contrast, false, false);
+		// Create the image filter pipeline, the downsampling method affects the image size
+		YuvFilter yuvFilter = new YuvFilter(resolution.width, resolution.height, contrast, false, false, downsample);
 		Bitmaps.Transform transform = Pictures.createTransformMatrix(
 			yuvFilter.getEffectiveWidth(size.width, size.height), 
 			yuvFilter.getEffectiveHeight(size.width, size.height), 
@@ -928,17 +944,18 @@ public class MainActivity extends Activity {
 	 */
 	private class ProcessFrameTask extends ProgressTask<Void, Void, Void> {
 		private IImageFilter _filter;
-		private IImageFilter.ImageBuffer _buffer;
+		private BitmapImageBuffer _buffer;
 
 		public ProcessFrameTask(CameraHandle handle, byte[] data) {
 			super(MainActivity.this, R.string.title_saving_image, R.string.msg_saving_image);
 			Camera.Size size = handle.camera.getParameters().getPreviewSize();
-			_buffer = new IImageFilter.ImageBuffer(data, size.width, size.height);
+			_buffer = new BitmapImageBuffer(data, size.width, size.height);
 			_task = this;
 			
 			// Get the resolution and contrast from preferences
 			Pictures.Resolution resolution = Pictures.getResolution(MainActivity.this, _prefs);
 			int contrast = Pictures.getContrast(MainActivity.this, _prefs);
+			YuvFilter.Downsample downsample = Pictures.getDownsample(MainActivity.this, _prefs);
 			
 			// Check the auto exposure setting
 			String autoexposurevalue = _prefs.getString(Pictures.PREF_AUTOEXPOSURE, getResources().getString(R.string.pref_autoexposure_default));
@@ -946,14 +963,14 @@ public class MainActivity extends Activity {
 			
 			// Create the image filter pipeline
 			IImageFilter effect = _effectFilter;
-			YuvFilter yuvFilter = new YuvFilter(resolution.width, resolution.height, contrast, effect.isColorFilter(), autoexposure);
+			YuvFilter yuvFilter = new YuvFilter(resolution.width, resolution.height, contrast, effect.isColorFilter(), autoexposure, downsample);
 			Bitmaps.Transform transform = getTransform(handle);
 			
 			CompositeFilter filter = new CompositeFilter();
 			filter.add(yuvFilter);
 			filter.add(effect);
-			filter.add(new ImageBitmapFilter());
 			filter.add(new TransformFilter(transform));
+			filter.add(new ImageBitmapFilter());
 			_filter = filter;
 		}
 		
@@ -1022,6 +1039,7 @@ public class MainActivity extends Activity {
 						 Pictures.PREF_MATRIXSIZE.equals(key) ||
 						 Pictures.PREF_RASTERLEVEL.equals(key) ||
 						 Pictures.PREF_AUTOEXPOSURE.equals(key) ||
+						 Pictures.PREF_DOWNSAMPLE.equals(key) ||
 						 Pictures.PREF_PALETTE.equals(key) ||
 						 key.startsWith(Pictures.PREF_ORIENTATION)) {
 					// Change the active image filter
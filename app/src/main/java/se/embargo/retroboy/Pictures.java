@@ -3,23 +3,36 @@ package se.embargo.retroboy;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import se.embargo.core.Strings;
 import se.embargo.core.graphic.Bitmaps;
 import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.cache.AssetCacheStorage;
+import se.embargo.retroboy.cache.FileCacheStorage;
+import se.embargo.retroboy.cache.ICacheStorage;
+import se.embargo.retroboy.cache.LayeredCacheStorage;
 import se.embargo.retroboy.color.BitPalette;
+import se.embargo.retroboy.color.BucketPalette;
 import se.embargo.retroboy.color.DistancePalette;
 import se.embargo.retroboy.color.Distances;
 import se.embargo.retroboy.color.Palettes;
 import se.embargo.retroboy.filter.AtkinsonFilter;
 import se.embargo.retroboy.filter.BayerFilter;
 import se.embargo.retroboy.filter.CompositeFilter;
+import se.embargo.retroboy.filter.ErrorDiffusionFilter;
 import se.embargo.retroboy.filter.HalftoneFilter;
 import se.embargo.retroboy.filter.IImageFilter;
 import se.embargo.retroboy.filter.Pxl2000Filter;
 import se.embargo.retroboy.filter.QuantizeFilter;
 import se.embargo.retroboy.filter.RasterFilter;
+import se.embargo.retroboy.filter.YuvFilter;
+import se.embargo.retroboy.graphic.DiffusionKernel;
+import se.embargo.retroboy.graphic.DitherMatrix;
 import se.embargo.retroboy.graphic.DitherMatrixes;
+import se.embargo.retroboy.graphic.PixelTransform;
 import se.embargo.retroboy.widget.PreferenceListAdapter;
 import android.annotation.SuppressLint;
 import android.content.ContentValues;
@@ -55,6 +68,8 @@ public class Pictures {
 	public static final String PREF_AUTOEXPOSURE = "autoexposure";
 	public static final String PREF_PALETTE = "palette";
 	public static final String PREF_MATRIXSIZE = "matrixsize";
+	public static final String PREF_MATRIXSIZE_BLUENOISE = "bluenoise";
+	public static final String PREF_MATRIXSIZE_DIFFUSION = "diffusion";
 	public static final String PREF_RASTERLEVEL = "rasterlevel";
 	public static final String PREF_SCENEMODE = "scenemode";
 	
@@ -63,6 +78,35 @@ public class Pictures {
 	public static final String PREF_FOCUSMARKER = "focusmarker";
 	public static final String PREF_FOCUSMARKER_NONE = "none";
 	
+	public static final String PREF_VIDEOFORMAT = "videoformat";
+	public static final String PREF_VIDEOFORMAT_GIF = "gif";
+	public static final String PREF_VIDEOFORMAT_APNG = "apng";
+	
+	public static final String PREF_DOWNSAMPLE = "downsample";
+	public static final String PREF_DOWNSAMPLE_BOX = "box";
+	
+	/**
+	 * Asset directory with the mixing plans generated at build time.
+	 */
+	private static final String MIXING_PLANS_ASSETS = "mixingplans";
+	
+	/**
+	 * Fills in mixing plans in the background, while the filters initialize the buckets they use on demand.
+	 */
+	private static final Executor MIXING_PLAN_EXECUTOR = Executors.newSingleThreadExecutor();
+	
+	/**
+	 * Learns quantized palettes at low priority, so preview frames don't wait for them.
+	 */
+	private static final Executor PALETTE_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "PaletteLearner");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+	
 	private static final String DIRECTORY = "Retroboy";
 	private static final String FILENAME_PATTERN = "IMGR%04d";
 
@@ -105,6 +149,34 @@ public class Pictures {
 		return 0;
 	}
 
+	/**
+	 * Get the video recording format
+	 * @param prefs	Preferences to get the format from
+	 * @return		One of the PREF_VIDEOFORMAT_*'s
+	 */
+	public static String getVideoFormat(Context context, SharedPreferences prefs) {
+		String format = prefs.getString(Pictures.PREF_VIDEOFORMAT, context.getResources().getString(R.string.pref_videoformat_default));
+		if (PREF_VIDEOFORMAT_APNG.equals(format)) {
+			return PREF_VIDEOFORMAT_APNG;
+		}
+		
+		return PREF_VIDEOFORMAT_GIF;
+	}
+
+	/**
+	 * Get the method used to reduce camera frames to the image resolution
+	 * @param prefs	Preferences to get the method from
+	 * @return		The selected downsampling method
+	 */
+	public static YuvFilter.Downsample getDownsample(Context context, SharedPreferences prefs) {
+		String downsample = prefs.getString(Pictures.PREF_DOWNSAMPLE, context.getResources().getString(R.string.pref_downsample_default));
+		if (PREF_DOWNSAMPLE_BOX.equals(downsample)) {
+			return YuvFilter.Downsample.Box;
+		}
+		
+		return YuvFilter.Downsample.Point;
+	}
+
 	/**
 	 * Get the preview resolution
 	 * @param prefs	Preferences to get the resolution from
@@ -204,20 +276,41 @@ public class Pictures {
 	}
 	
 	public static IImageFilter createEffectFilter(Context context) {
+		return createEffectFilter(context, false);
+	}
+	
+	/**
+	 * @param preview	True if the filter processes a stream of preview frames, which allows adapting 
+	 * 					palettes in the background rather than on each frame
+	 */
+	public static IImageFilter createEffectFilter(Context context, boolean preview) {
 		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
 		String filtertype = prefs.getString(PREF_FILTER, context.getResources().getString(R.string.pref_filter_default));
-		int[] matrix = getMatrix(context, prefs);
 		int rasterlevel = Strings.parseInt(prefs.getString(PREF_RASTERLEVEL, 
 			context.getResources().getString(R.string.pref_rasterlevel_default)), 4);
+		ICacheStorage storage = new LayeredCacheStorage(
+			new AssetCacheStorage(context.getAssets(), MIXING_PLANS_ASSETS), new FileCacheStorage(context.getFilesDir()));
+		DitherMatrix matrix = getMatrix(context, prefs, storage);
+		Executor executor = MIXING_PLAN_EXECUTOR;
+		boolean diffusion = PREF_MATRIXSIZE_DIFFUSION.equals(
+			prefs.getString(PREF_MATRIXSIZE, context.getResources().getString(R.string.pref_matrixsize_default)));
 		
 		if (PREF_FILTER_AMSTRAD_CPC464.equals(filtertype)) {
-			return new RasterFilter(context, Distances.LUV, Palettes.AMSTRAD_CPC464, matrix, rasterlevel);
+			if (diffusion) {
+				return createDiffusionFilter(storage, Palettes.AMSTRAD_CPC464);
+			}
+			
+			return new RasterFilter(storage, executor, Distances.LUV, Palettes.AMSTRAD_CPC464, matrix, rasterlevel);
 		}
 
 		if (PREF_FILTER_COMMODORE_64.equals(filtertype)) {
-			return new RasterFilter(context, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED, matrix, rasterlevel);
+			if (diffusion) {
+				return createDiffusionFilter(storage, Palettes.COMMODORE_64_GAMMA_ADJUSTED);
+			}
+			
+			return new RasterFilter(storage, executor, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED, matrix, rasterlevel);
 			//return new BayerFilter(new BucketPalette(new YuvPalette(Palettes.COMMODORE_64_GAMMA_ADJUSTED)), true);
-			//return new YliluomaTriFilter(context, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED);
+			//return new YliluomaTriFilter(storage, executor, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED);
 		}
 
 		if (PREF_FILTER_AMIGA_500.equals(filtertype)) {
@@ -227,7 +320,7 @@ public class Pictures {
 			CompositeFilter filter = new CompositeFilter();
 			BayerFilter effect = new BayerFilter(palette, matrix, BayerFilter.PaletteType.Color);
 			//PaletteFilter effect = new PaletteFilter(palette);
-			filter.add(new QuantizeFilter(palette, effect));
+			filter.add(new QuantizeFilter(palette, effect, preview ? PALETTE_EXECUTOR : null));
 			filter.add(effect);
 			return filter;
 		}
@@ -266,9 +359,23 @@ public class Pictures {
 		return new BayerFilter(new DistancePalette(Distances.YUV, palette), matrix, BayerFilter.PaletteType.Threshold);
 	}
 	
-	private static int[] getMatrix(Context context, SharedPreferences prefs) {
-		int matrixsize = Strings.parseInt(prefs.getString(PREF_MATRIXSIZE, 
-			context.getResources().getString(R.string.pref_matrixsize_default)), 4);
+	/**
+	 * Creates a Floyd-Steinberg filter for the color palettes, which is chosen as a dithering option.
+	 * The diffused error gives arbitrary colors, so the buckets use 5 bits per channel.
+	 */
+	private static IImageFilter createDiffusionFilter(ICacheStorage storage, int[] colors) {
+		IPalette palette = new BucketPalette(
+			new DistancePalette(Distances.LUV, colors), 5, storage, Distances.LUV.toString());
+		return new ErrorDiffusionFilter(palette, DiffusionKernel.FLOYD_STEINBERG);
+	}
+	
+	private static DitherMatrix getMatrix(Context context, SharedPreferences prefs, ICacheStorage storage) {
+		String value = prefs.getString(PREF_MATRIXSIZE, context.getResources().getString(R.string.pref_matrixsize_default));
+		if (PREF_MATRIXSIZE_BLUENOISE.equals(value)) {
+			return DitherMatrixes.createBlueNoise(storage);
+		}
+		
+		int matrixsize = Strings.parseInt(value, 4);
 		
 		switch (matrixsize) {
 			case 8: 
@@ -345,6 +452,24 @@ public class Pictures {
 		return createTransformMatrix(inputwidth, inputheight, facing, orientation, rotation, maxwidth, maxheight, 0);
 	}
 
+	/**
+	 * Creates a transform that applies a transform matrix to pixel buffers using the nearest pixels.
+	 * @param	transform		Transform created by createTransformMatrix()
+	 * @param	inputwidth		Input frame width
+	 * @param	inputheight		Input frame height
+	 * @return					The transform, or null if the matrix needs resampling, e.g. for arbitrary rotations
+	 */
+	public static PixelTransform createPixelTransform(Bitmaps.Transform transform, int inputwidth, int inputheight) {
+		float[] values = new float[9];
+		transform.matrix.getValues(values);
+		
+		if (!PixelTransform.isSupported(values)) {
+			return null;
+		}
+		
+		return new PixelTransform(values, inputwidth, inputheight, transform.width, transform.height);
+	}
+
 	public static int getCameraOrientation(SharedPreferences prefs, Camera.CameraInfo info, int cameraId) {
 		int orientation = Strings.parseInt(prefs.getString(PREF_ORIENTATION + "_" + cameraId, "-1"), -1);
 		if (orientation < 0) {
@@ -1,22 +1,44 @@
 package se.embargo.retroboy;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
 import se.embargo.core.concurrent.ProgressTask;
 import se.embargo.core.graphic.Bitmaps;
 import se.embargo.core.graphic.Bitmaps.Transform;
 import se.embargo.core.graphic.color.IIndexedPalette;
 import se.embargo.core.graphic.gif.GifEncoder;
 import se.embargo.retroboy.filter.AbstractFilter;
+import se.embargo.retroboy.graphic.ApngWriter;
+import se.embargo.retroboy.graphic.GifWriter;
+import se.embargo.retroboy.graphic.IAnimationWriter;
+import se.embargo.retroboy.graphic.IAnimationWriter.IFrameEncoder;
+import se.embargo.retroboy.graphic.IndexPacker;
+import se.embargo.retroboy.graphic.PixelTransform;
 import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Context;
@@ -29,19 +51,59 @@ import android.view.View;
 import android.widget.ProgressBar;
 
 /**
- * Handles animated GIF recording.
+ * Handles animated GIF and PNG recording.
  */
 public class VideoRecorder extends AbstractFilter {
 	private static final String TAG = "GifFilter";
 	private static final int MAX_CAPTURED_FRAMES = 250;
+	
+	/**
+	 * Frames stored as palette indices take 4 to 32 times less space.
+	 */
+	private static final int MAX_INDEXED_FRAMES = 1000;
 	private static final int MIN_DELAY_MILLIS = 100;
 	
+	/**
+	 * Number of frames that may wait for the streaming encoder before new frames are dropped.
+	 */
+	private static final int STREAM_QUEUE_SIZE = 4;
+	
+	/**
+	 * Number of consecutive frames encoded by each thread, which also transforms the frame before them.
+	 */
+	private static final int FRAMES_PER_WORKER = 8;
+	
 	private final Activity _context;
 	private final ProgressBar _recordProgressBar;
 	
+	/**
+	 * Encode frames while recording rather than after, which needs a spare core to not slow down the preview.
+	 */
+	private final boolean _streaming = Parallel.getNumberOfCores() > 1;
+	
 	private volatile Transform _transform = null;
 	private IIndexedPalette _palette;
 	
+	/**
+	 * Format of the current recording, one of Pictures.PREF_VIDEOFORMAT_*.
+	 */
+	private String _format = Pictures.PREF_VIDEOFORMAT_GIF;
+	
+	/**
+	 * Packs frames into palette indices when a small enough fixed palette exists.
+	 */
+	private IndexPacker _packer = null;
+	
+	/**
+	 * Buffer for packing a frame into the scratch file.
+	 */
+	private byte[] _packbuffer = null;
+	
+	/**
+	 * Maximum number of frames in the current recording.
+	 */
+	private int _maxframes = MAX_CAPTURED_FRAMES;
+	
 	private Queue<VideoFrame> _frames = new PriorityBlockingQueue<VideoFrame>();
 	private int _framecount = 0;
 	
@@ -50,6 +112,11 @@ public class VideoRecorder extends AbstractFilter {
 	private File _framefile;
 	private long _framepos;
 	
+	/**
+	 * Encoder of the current recording in streaming mode.
+	 */
+	private StreamTask _stream = null;
+	
 	/**
 	 * Timestamp of previous frame in nanoseconds.
 	 */
@@ -66,7 +133,7 @@ public class VideoRecorder extends AbstractFilter {
 	public VideoRecorder(Activity context, View parent) {
 		_context = context;
 		_recordProgressBar = (ProgressBar)parent.findViewById(R.id.recordProgressBar);
-		_recordProgressBar.setMax(MAX_CAPTURED_FRAMES);
+		_recordProgressBar.setMax(_maxframes);
 		_framefile = new File(_context.getCacheDir() + File.separator + "frames.bin");
 	}
 	
@@ -82,27 +149,44 @@ public class VideoRecorder extends AbstractFilter {
 	 * Start recording frames.
 	 * @param	transform	Transform to apply on frames, e.g. rotation.
 	 * @param	palette		Fixed indexed palette if one exists 
+	 * @param	format		One of Pictures.PREF_VIDEOFORMAT_*
 	 */
-	public synchronized void record(Transform transform, IIndexedPalette palette) {
+	public synchronized void record(Transform transform, IIndexedPalette palette, String format) {
 		if (_transform == null) {
-			try {
-				_frameos = new RandomAccessFile(_framefile, "rw");
+			// Animated PNG declares the number of frames up front, so it's encoded after recording
+			if (_streaming && Pictures.PREF_VIDEOFORMAT_GIF.equals(format)) {
+				_stream = new StreamTask(_context, transform, palette, _listener);
+				
+				// Run slightly below the preview, so frames are dropped rather than delayed
+				Thread thread = new Thread(_stream, "VideoEncoder");
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				thread.start();
 			}
-			catch (Exception e) {
-				Log.e(TAG, "Failed to open scratch file for output", e);
-				_framefile.delete();
-				return;
+			else {
+				try {
+					_frameos = new RandomAccessFile(_framefile, "rw");
+				}
+				catch (Exception e) {
+					Log.e(TAG, "Failed to open scratch file for output", e);
+					_framefile.delete();
+					return;
+				}
+				
+				_framechan = _frameos.getChannel();
+				_framepos = 0;
 			}
 
-			_framechan = _frameos.getChannel();
-			_framepos = 0;
-
 			_palette = palette;
+			_format = format;
+			_packer = (palette != null && IndexPacker.isSupported(palette)) ? new IndexPacker(palette) : null;
+			_maxframes = _packer != null ? MAX_INDEXED_FRAMES : MAX_CAPTURED_FRAMES;
 			_transform = transform;
 			
 			_context.runOnUiThread(new Runnable() {
 				@Override
 				public void run() {
+					_recordProgressBar.setMax(_maxframes);
+					
 					if (_listener != null) {
 						_listener.onRecord();
 					}
@@ -116,6 +200,12 @@ public class VideoRecorder extends AbstractFilter {
 	 */
 	public synchronized void stop() {
 		if (_transform != null) {
+			// A failed encoder has already reported that it's done
+			if (_stream != null && _stream.isFailed()) {
+				abort();
+				return;
+			}
+			
 			finish();
 		}
 	}
@@ -125,6 +215,14 @@ public class VideoRecorder extends AbstractFilter {
 	 */
 	public synchronized void abort() {
 		if (_transform != null) {
+			if (_stream != null) {
+				// The encoder deletes the file and reports when it's done
+				_stream.abort();
+				_stream = null;
+				reset();
+				return;
+			}
+			
 			reset();
 			
 			try {
@@ -155,9 +253,18 @@ public class VideoRecorder extends AbstractFilter {
 		final File framefile = _framefile;
 		final Bitmaps.Transform transform = _transform;
 		final Queue<VideoFrame> frames = _frames;
+		final StreamTask stream = _stream;
+		final IndexPacker packer = _packer;
+		final String format = _format;
 		_frames = new PriorityQueue<VideoFrame>();
+		_stream = null;
 		reset();
 		
+		// The streaming encoder only needs to write the trailer
+		if (stream != null) {
+			stream.finish();
+		}
+		
 		_context.runOnUiThread(new Runnable() {
 			@Override
 			public void run() {
@@ -165,8 +272,8 @@ public class VideoRecorder extends AbstractFilter {
 					_listener.onStop();
 				}
 
-				if (!frames.isEmpty()) {
-					new EncodeTask(_context, frameos, framechan, framefile, transform, frames, _listener, _palette).execute();
+				if (stream == null && !frames.isEmpty()) {
+					new EncodeTask(_context, frameos, framechan, framefile, transform, frames, _listener, _palette, packer, format).execute();
 				}
 			}
 		});
@@ -188,39 +295,79 @@ public class VideoRecorder extends AbstractFilter {
 				return;
 			}
 			
-			// Map a memory block from the scratch file
-			int pixelcount = buffer.imagewidth * buffer.imageheight, 
-				bytes = pixelcount * 4;
-			ByteBuffer block;
-			
-			try {
-				block = _framechan.map(FileChannel.MapMode.READ_WRITE, _framepos, bytes);
+			if (_stream != null) {
+				// Stop recording if the encoder has failed
+				if (_stream.isFailed()) {
+					abort();
+					return;
+				}
+				
+				// Drop the frame if the encoder is falling behind, which lowers the capture rate
+				if (!_stream.offer(buffer)) {
+					return;
+				}
 			}
-			catch (Exception e) {
-				Log.e(TAG, "Failed to map memory block from scratch file", e);
-				stop();
-				return;
+			else {
+				// Map a memory block from the scratch file
+				int pixelcount = buffer.imagewidth * buffer.imageheight,
+					bytes = _packer != null ? _packer.getPackedSize(pixelcount) : pixelcount * 4;
+				ByteBuffer block;
+			
+				try {
+					block = _framechan.map(FileChannel.MapMode.READ_WRITE, _framepos, bytes);
+				}
+				catch (Exception e) {
+					Log.e(TAG, "Failed to map memory block from scratch file", e);
+					stop();
+					return;
+				}
+				
+				// Output the frame
+				if (_packer != null) {
+					if (_packbuffer == null || _packbuffer.length < bytes) {
+						_packbuffer = new byte[bytes];
+					}
+					
+					_packer.pack(buffer.image.array(), pixelcount, _packbuffer);
+					block.put(_packbuffer, 0, bytes);
+				}
+				else {
+					block.asIntBuffer().put(buffer.image.array(), 0, pixelcount);
+				}
+				
+				_framepos += bytes;
+				_frames.add(new VideoFrame(block, buffer.imagewidth, buffer.imageheight, buffer.timestamp));
 			}
-	
-			// Output the frame
-			block.asIntBuffer().put(buffer.image.array(), 0, pixelcount);
 			
 			// Report progress
 			_prevtimestamp = buffer.timestamp;
 			_framecount++;
-			_framepos += bytes;
-			_frames.add(new VideoFrame(block, buffer.imagewidth, buffer.imageheight, buffer.timestamp));
 			_recordProgressBar.setProgress(_framecount);
 			
 			// Stop automatically once the max number of frames has been captured
-			if (_framecount >= MAX_CAPTURED_FRAMES) {
+			if (_framecount >= _maxframes) {
 				stop();
 			}
 		}
 	}
 	
+	/**
+	 * Tells the gallery about a recorded image.
+	 */
+	private static void addToGallery(Context context, File file, String mimetype) {
+		ContentValues values = new ContentValues();
+		values.put(MediaStore.Images.Media.DATA, file.getAbsolutePath());
+		values.put(MediaStore.Images.Media.MIME_TYPE, mimetype);
+		values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
+		context.getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+	}
+	
 	private static class VideoFrame implements Comparable<VideoFrame> {
+		/**
+		 * Frame pixels, either mapped from the scratch file or held in memory.
+		 */
 		public ByteBuffer block;
+		public int[] image;
 		public final int width, height;
 		public final long timestamp;
 		
@@ -231,12 +378,579 @@ public class VideoRecorder extends AbstractFilter {
 			this.timestamp = timestamp;
 		}
 
+		public VideoFrame(int[] image, int width, int height, long timestamp) {
+			this.image = image;
+			this.width = width;
+			this.height = height;
+			this.timestamp = timestamp;
+		}
+		
 		@Override
 		public int compareTo(VideoFrame other) {
 			return timestamp < other.timestamp ? -1 : (timestamp == other.timestamp ? 0 : 1);
 		}
 	}
 	
+	/**
+	 * Reads frames from the scratch file, each reader must only be used by one thread at a time.
+	 */
+	private static class FrameReader {
+		private final IndexPacker _packer;
+		private int[] _image = null;
+		private byte[] _packed = null, _indices = null;
+		
+		/**
+		 * @param packer	Unpacks the frames if they're stored as palette indices, otherwise null
+		 */
+		public FrameReader(IndexPacker packer) {
+			_packer = packer;
+		}
+		
+		/**
+		 * @return	The pixels of the frame, which are overwritten by the next call.
+		 */
+		public int[] read(VideoFrame frame) {
+			// Buffer for reading the frame
+			if (_image == null || _image.length != frame.width * frame.height) {
+				_image = new int[frame.width * frame.height];
+			}
+			
+			// Read input image with a position of its own, packed frames already hold palette colors
+			ByteBuffer block = frame.block.duplicate();
+			block.rewind();
+			
+			if (_packer != null) {
+				if (_packed == null || _packed.length != block.capacity()) {
+					_packed = new byte[block.capacity()];
+				}
+				
+				block.get(_packed);
+				_packer.unpack(_packed, _image, _image.length);
+			}
+			else {
+				block.asIntBuffer().get(_image, 0, _image.length);
+			}
+			
+			return _image;
+		}
+		
+		/**
+		 * @return	The palette indices of a packed frame, which are overwritten by the next call.
+		 */
+		public byte[] readIndices(VideoFrame frame) {
+			if (_indices == null || _indices.length != frame.width * frame.height) {
+				_indices = new byte[frame.width * frame.height];
+			}
+			
+			ByteBuffer block = frame.block.duplicate();
+			block.rewind();
+			
+			if (_packed == null || _packed.length != block.capacity()) {
+				_packed = new byte[block.capacity()];
+			}
+			
+			block.get(_packed);
+			_packer.unpack(_packed, _indices, _indices.length);
+			return _indices;
+		}
+	}
+	
+	/**
+	 * Applies the recording transform to frames, each transformer must only be used by one thread at a time.
+	 * Rotations by multiples of 90 degrees copy the nearest pixels, so palette colors are kept exactly.
+	 */
+	private static class FrameTransformer {
+		private final Bitmaps.Transform _transform;
+		private final Paint _paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		private Bitmap _inputbm = null, _outputbm = null;
+		private Canvas _canvas = null;
+		
+		/**
+		 * Nearest pixel transform for the current frame size, or null if the matrix needs resampling.
+		 */
+		private PixelTransform _kernel = null;
+		private int _kernelwidth = -1, _kernelheight = -1;
+		
+		/**
+		 * Transformed pixels.
+		 */
+		private final int[] _pixels;
+		
+		public FrameTransformer(Bitmaps.Transform transform) {
+			_transform = transform;
+			_pixels = new int[_transform.width * _transform.height];
+		}
+		
+		/**
+		 * @return	The number of pixels in a transformed frame.
+		 */
+		public int getPixelCount() {
+			return _pixels.length;
+		}
+		
+		/**
+		 * @return	The transformed frame, which is overwritten by the next call.
+		 */
+		public Bitmap transform(int[] image, int width, int height) {
+			if (_outputbm == null) {
+				_outputbm = Bitmap.createBitmap(_transform.width, _transform.height, Bitmap.Config.ARGB_8888);
+				_canvas = new Canvas(_outputbm);
+			}
+			
+			if (getKernel(width, height) != null) {
+				_kernel.apply(image, _pixels);
+				_outputbm.setPixels(_pixels, 0, _transform.width, 0, 0, _transform.width, _transform.height);
+				return _outputbm;
+			}
+			
+			// Buffer for transforming the frame
+			if (_inputbm == null || _inputbm.getWidth() != width || _inputbm.getHeight() != height) {
+				if (_inputbm != null) {
+					_inputbm.recycle();
+				}
+				
+				_inputbm = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			}
+			
+			// Resample the frame
+			_inputbm.setPixels(image, 0, width, 0, 0, width, height);
+			_canvas.drawBitmap(_inputbm, _transform.matrix, _paint);
+			_outputbm.getPixels(_pixels, 0, _transform.width, 0, 0, _transform.width, _transform.height);
+			return _outputbm;
+		}
+		
+		/**
+		 * Transforms a frame into palette indices.
+		 * @param packer	Finds the exact index of each color, resampled colors are mapped onto the 
+		 * 					nearest palette color first
+		 */
+		public void transform(int[] image, int width, int height, IndexPacker packer, byte[] indices) {
+			if (getKernel(width, height) != null) {
+				_kernel.apply(image, _pixels);
+			}
+			else {
+				transform(image, width, height);
+			}
+			
+			for (int i = 0; i < _pixels.length; i++) {
+				indices[i] = (byte)packer.getIndex(_pixels[i]);
+			}
+		}
+		
+		/**
+		 * Transforms a frame into a buffer of colors.
+		 */
+		public void transform(int[] image, int width, int height, int[] output) {
+			if (getKernel(width, height) != null) {
+				_kernel.apply(image, output);
+			}
+			else {
+				transform(image, width, height);
+				System.arraycopy(_pixels, 0, output, 0, _pixels.length);
+			}
+		}
+		
+		/**
+		 * Transforms a frame of palette indices.
+		 * @return	False if the matrix needs resampling, which only works on colors.
+		 */
+		public boolean transform(byte[] input, int width, int height, byte[] indices) {
+			if (getKernel(width, height) != null) {
+				_kernel.apply(input, indices);
+				return true;
+			}
+			
+			return false;
+		}
+		
+		public void recycle() {
+			if (_outputbm != null) {
+				_outputbm.recycle();
+				_outputbm = null;
+			}
+			
+			if (_inputbm != null) {
+				_inputbm.recycle();
+				_inputbm = null;
+			}
+		}
+		
+		private PixelTransform getKernel(int width, int height) {
+			if (width != _kernelwidth || height != _kernelheight) {
+				_kernel = Pictures.createPixelTransform(_transform, width, height);
+				_kernelwidth = width;
+				_kernelheight = height;
+			}
+			
+			return _kernel;
+		}
+	}
+	
+	/**
+	 * Transforms frames and appends them to a GIF file. Frames with a fixed palette are written as 
+	 * the changes since the previous frame. They're compressed by a thread per core and appended in 
+	 * order, while the caller goes on with the next frame. Other frames are quantized by the library 
+	 * encoder on the calling thread.
+	 */
+	private static class FrameEncoder {
+		private final OutputStream _os;
+		private final IndexPacker _packer;
+		private final GifWriter _writer;
+		private final GifEncoder _encoder;
+		private final FrameTransformer _transformer;
+		private boolean _closed = false;
+		
+		/**
+		 * Compresses frames, null unless frames are written as palette indices.
+		 */
+		private final ExecutorService _executor;
+		private final int _workers;
+		
+		/**
+		 * Encoders of the compressing threads.
+		 */
+		private final Queue<GifWriter.Encoder> _encoders = new ConcurrentLinkedQueue<GifWriter.Encoder>();
+		
+		/**
+		 * Frames being compressed and their palette indices, in the order they're written.
+		 */
+		private final Queue<Future<byte[]>> _pending = new ArrayDeque<Future<byte[]>>();
+		private final Queue<byte[]> _pendingindices = new ArrayDeque<byte[]>();
+		
+		/**
+		 * Palette indices of the last written and the last added frame, the next frame is compressed
+		 * against the last added one.
+		 */
+		private byte[] _written = null, _previous = null;
+		
+		/**
+		 * Index buffers that no frame refers to anymore.
+		 */
+		private final Queue<byte[]> _free = new ArrayDeque<byte[]>();
+		private int _sequence = 0;
+		
+		/**
+		 * Timestamp of the previous frame in 1/100 seconds.
+		 */
+		private long _prevtimestamp = 0;
+		
+		public FrameEncoder(File file, Bitmaps.Transform transform, IIndexedPalette palette) throws IOException {
+			_os = new BufferedOutputStream(new FileOutputStream(file));
+			_transformer = new FrameTransformer(transform);
+			
+			if (isIndexed(palette)) {
+				_packer = new IndexPacker(palette);
+				_writer = new GifWriter(_os, transform.width, transform.height, palette.getColors(), true);
+				_encoder = null;
+				_workers = Parallel.getNumberOfCores();
+				_executor = Executors.newFixedThreadPool(_workers, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						// Run slightly below the preview, like the thread that feeds them
+						Thread thread = new Thread(r, "VideoCompressor");
+						thread.setPriority(Thread.NORM_PRIORITY - 1);
+						return thread;
+					}
+				});
+			}
+			else {
+				_packer = null;
+				_writer = null;
+				_encoder = new GifEncoder(palette);
+				_encoder.setRepeat(0);
+				_encoder.start(_os);
+				_workers = 0;
+				_executor = null;
+			}
+		}
+		
+		/**
+		 * @return	True if frames with the given palette are written as palette indices.
+		 */
+		public static boolean isIndexed(IIndexedPalette palette) {
+			return palette != null && IndexPacker.isSupported(palette);
+		}
+		
+		public void add(int[] image, int width, int height, long timestamp) throws IOException {
+			// Calculate the frame delay in 1/100 seconds
+			timestamp /= 10000000L;
+			int delay = _prevtimestamp != 0 ? (int)(timestamp - _prevtimestamp) : 0;
+			_prevtimestamp = timestamp;
+			
+			// Transform and encode the frame
+			if (_writer != null) {
+				byte[] indices = _free.poll();
+				if (indices == null) {
+					indices = new byte[_transformer.getPixelCount()];
+				}
+				
+				_transformer.transform(image, width, height, _packer, indices);
+				
+				// Keep at most one frame per thread in flight, which bounds the memory used
+				while (_pending.size() >= _workers) {
+					writeNext();
+				}
+				
+				_pending.add(_executor.submit(new CompressTask(_sequence++, indices, _previous, delay)));
+				_pendingindices.add(indices);
+				_previous = indices;
+			}
+			else {
+				Bitmap frame = _transformer.transform(image, width, height);
+				if (delay != 0) {
+					_encoder.setDelay(delay * 10);
+				}
+				
+				_encoder.addFrame(frame);
+			}
+		}
+		
+		/**
+		 * Writes the trailer and flushes the image to disk.
+		 */
+		public void finish() throws IOException {
+			if (_writer != null) {
+				while (!_pending.isEmpty()) {
+					writeNext();
+				}
+				
+				_writer.finish();
+			}
+			else {
+				_encoder.finish();
+			}
+			
+			_os.flush();
+			_os.close();
+			_closed = true;
+		}
+		
+		/**
+		 * Releases the buffers and threads, and closes the file unless finished.
+		 */
+		public void close() {
+			_transformer.recycle();
+			
+			if (_executor != null) {
+				_executor.shutdownNow();
+				
+				for (GifWriter.Encoder encoder : _encoders) {
+					encoder.release();
+				}
+			}
+			
+			if (!_closed) {
+				try {
+					_os.close();
+				}
+				catch (Exception e) {}
+			}
+		}
+		
+		/**
+		 * Waits for the oldest frame being compressed and appends it to the file.
+		 */
+		private void writeNext() throws IOException {
+			try {
+				_writer.addFrame(_pending.poll().get());
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while compressing frame");
+			}
+			catch (ExecutionException e) {
+				IOException ioe = new IOException("Failed to compress frame");
+				ioe.initCause(e.getCause());
+				throw ioe;
+			}
+			
+			// The frame before the written one isn't referred to by any frame still being compressed
+			if (_written != null) {
+				_free.add(_written);
+			}
+			
+			_written = _pendingindices.poll();
+		}
+		
+		/**
+		 * Compresses a frame against the previous one.
+		 */
+		private class CompressTask implements Callable<byte[]> {
+			private final int _sequence;
+			private final byte[] _indices, _previous;
+			private final int _delay;
+			
+			public CompressTask(int sequence, byte[] indices, byte[] previous, int delay) {
+				_sequence = sequence;
+				_indices = indices;
+				_previous = previous;
+				_delay = delay;
+			}
+			
+			@Override
+			public byte[] call() throws IOException {
+				GifWriter.Encoder encoder = _encoders.poll();
+				if (encoder == null) {
+					encoder = _writer.createEncoder();
+				}
+				
+				try {
+					ByteArrayOutputStream os = new ByteArrayOutputStream();
+					encoder.encode(os, _sequence, _indices, _previous, _delay);
+					return os.toByteArray();
+				}
+				finally {
+					_encoders.add(encoder);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Encodes frames on a background thread while they're being recorded.
+	 */
+	private static class StreamTask implements Runnable {
+		/**
+		 * Marks the end of the recording.
+		 */
+		private static final VideoFrame END = new VideoFrame((int[])null, 0, 0, 0);
+		
+		private final Activity _context;
+		private final Bitmaps.Transform _transform;
+		private final IIndexedPalette _palette;
+		private final StateChangeListener _listener;
+		
+		/**
+		 * Frames waiting to be encoded, with room for the end marker.
+		 */
+		private final BlockingQueue<VideoFrame> _queue = new ArrayBlockingQueue<VideoFrame>(STREAM_QUEUE_SIZE + 1);
+		
+		/**
+		 * Frame buffers returned by the encoder.
+		 */
+		private final BlockingQueue<int[]> _free = new ArrayBlockingQueue<int[]>(STREAM_QUEUE_SIZE);
+		
+		/**
+		 * Number of frame buffers handed out, only accessed by the recording thread.
+		 */
+		private int _allocated = 0;
+		
+		private volatile boolean _aborted = false;
+		
+		/**
+		 * Set if the encoder stopped because of an error.
+		 */
+		private volatile boolean _failed = false;
+		
+		public StreamTask(Activity context, Bitmaps.Transform transform, IIndexedPalette palette, StateChangeListener listener) {
+			_context = context;
+			_transform = transform;
+			_palette = palette;
+			_listener = listener;
+		}
+		
+		/**
+		 * Queues a copy of a frame for encoding.
+		 * @return	False if the encoder is busy and the frame was dropped.
+		 */
+		public boolean offer(ImageBuffer buffer) {
+			final int pixelcount = buffer.imagewidth * buffer.imageheight;
+			int[] image = _free.poll();
+			
+			if (image == null) {
+				if (_allocated >= STREAM_QUEUE_SIZE) {
+					return false;
+				}
+				
+				_allocated++;
+			}
+			
+			if (image == null || image.length != pixelcount) {
+				image = new int[pixelcount];
+			}
+			
+			System.arraycopy(buffer.image.array(), 0, image, 0, pixelcount);
+			_queue.add(new VideoFrame(image, buffer.imagewidth, buffer.imageheight, buffer.timestamp));
+			return true;
+		}
+		
+		/**
+		 * Finalizes the file once the queued frames are encoded.
+		 */
+		public void finish() {
+			_queue.add(END);
+		}
+		
+		/**
+		 * @return	True if the encoder stopped because of an error, after which frames aren't accepted.
+		 */
+		public boolean isFailed() {
+			return _failed;
+		}
+		
+		/**
+		 * Stops encoding and deletes the file.
+		 */
+		public void abort() {
+			_aborted = true;
+			_queue.add(END);
+		}
+		
+		@Override
+		public void run() {
+			File file = Pictures.createOutputFile(_context, null, "gif");
+			FrameEncoder encoder = null;
+			long firstts = 0, lastts = 0;
+			int count = 0;
+			
+			try {
+				encoder = new FrameEncoder(file, _transform, _palette);
+				
+				for (VideoFrame frame = _queue.take(); frame != END && !_aborted; frame = _queue.take()) {
+					// Remember timestamps for framerate calculation
+					if (firstts == 0) {
+						firstts = frame.timestamp;
+					}
+					lastts = frame.timestamp;
+					
+					encoder.add(frame.image, frame.width, frame.height, frame.timestamp);
+					_free.offer(frame.image);
+					count++;
+				}
+				
+				if (!_aborted && count > 0) {
+					encoder.finish();
+					Log.i(TAG, "Output GIF framerate: " + ((double)count / ((double)(lastts - firstts) / 1000000000)));
+					
+					// Prevent the file from being deleted once it's in the gallery
+					addToGallery(_context, file, "image/gif");
+					file = null;
+				}
+			}
+			catch (Exception e) {
+				Log.e(TAG, "Failed to write GIF to:" + file, e);
+				_failed = true;
+			}
+			finally {
+				if (encoder != null) {
+					encoder.close();
+				}
+				
+				if (file != null) {
+					file.delete();
+				}
+				
+				_context.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (_listener != null) {
+							_listener.onFinish();
+						}
+					}
+				});
+			}
+		}
+	}
+	
 	private static class EncodeTask extends ProgressTask<Void, Integer, Void> {
 		private final RandomAccessFile _frameos;
 		private final FileChannel _framechan;
@@ -245,11 +959,23 @@ public class VideoRecorder extends AbstractFilter {
 		private final Queue<VideoFrame> _frames;
 		private final StateChangeListener _listener;
 		private final IIndexedPalette _palette;
+		
+		/**
+		 * Unpacks the frames if they're stored as palette indices, otherwise null.
+		 */
+		private final IndexPacker _packer;
+		
+		/**
+		 * Format of the output, and whether frames are written as palette indices.
+		 */
+		private final String _format;
+		private final boolean _indexed;
 		private File _file = null;
 		
 		public EncodeTask(
 				Context context, RandomAccessFile frameos, FileChannel framechan, File framefile, 
-				Bitmaps.Transform transform, Queue<VideoFrame> frames, StateChangeListener listener, IIndexedPalette palette) {
+				Bitmaps.Transform transform, Queue<VideoFrame> frames, StateChangeListener listener, IIndexedPalette palette, IndexPacker packer,
+				String format) {
 			super(context, R.string.title_saving_image, R.string.msg_saving_image);
 			setMaxProgress(frames.size());
 			setCancelable();
@@ -260,111 +986,49 @@ public class VideoRecorder extends AbstractFilter {
 			_frames = frames;
 			_listener = listener;
 			_palette = palette;
+			_packer = packer;
+			_format = format;
+			_indexed = FrameEncoder.isIndexed(palette);
 		}
 
 		@Override
 		protected Void doInBackground(Void... params) {
-			int progress = 0;
-			long prevtimestamp = 0;
-			_file = Pictures.createOutputFile(getContext(), null, "gif");
-			
-			OutputStream os = null;
-			Bitmap inputbm = null, outputbm = Bitmap.createBitmap(_transform.width, _transform.height, Bitmap.Config.ARGB_8888);
-			Canvas canvas = new Canvas(outputbm);
-			Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-			int[] image = null;
-			long firstts = 0, lastts = 0;
+			final boolean apng = Pictures.PREF_VIDEOFORMAT_APNG.equals(_format);
+			_file = Pictures.createOutputFile(getContext(), null, apng ? "png" : "gif");
+			
+			// Frames are written in the order they were captured
+			final VideoFrame[] frames = _frames.toArray(new VideoFrame[_frames.size()]);
+			Arrays.sort(frames);
 			
 			try {
 				long ts = System.currentTimeMillis();
 				
-				// Create output encoder
-				os = new BufferedOutputStream(new FileOutputStream(_file)); 
-				GifEncoder encoder = new GifEncoder(_palette);
-				encoder.setRepeat(0);
-				encoder.start(os);
+				// Encode all frames, GIF frames without a palette are quantized by the library encoder
+				if (apng || _indexed) {
+					encodeParallel(frames, apng);
+				}
+				else {
+					encode(frames);
+				}
 				
-				// Encode all frames
-				for (VideoFrame frame : _frames) {
-					if (isCancelled()) {
-						return null;
-					}
-					
-					// Remember timestamps for framerate calculation
-					if (firstts == 0) {
-						firstts = frame.timestamp;
-					}
-					lastts = frame.timestamp;
-
-					// Buffers for reading and transforming the frame
-					if (inputbm == null || inputbm.getWidth() != frame.width || inputbm.getHeight() != frame.height) {
-						inputbm = Bitmap.createBitmap(frame.width, frame.height, Bitmap.Config.ARGB_8888);
-						image = new int[frame.width * frame.height];
-					}
-					
-					// Read input image
-					frame.block.rewind();
-					frame.block.asIntBuffer().get(image, 0, image.length);
-					
-					// Transform the frame
-					inputbm.setPixels(image, 0, frame.width, 0, 0, frame.width, frame.height);
-					canvas.drawBitmap(inputbm, _transform.matrix, paint);
-					
-					// Calculate the frame delay in 1/100 seconds
-					long timestamp = frame.timestamp / 10000000L;
-					if (prevtimestamp != 0) {
-						encoder.setDelay(((int)(timestamp - prevtimestamp)) * 10);					
-					}
-					prevtimestamp = timestamp;
-					
-					// Encode the frame
-					encoder.addFrame(outputbm);
-					frame.block = null;
-					
-					// Publish progress
-					progress++;
-					publishProgress(progress);
+				if (isCancelled()) {
+					return null;
 				}
 				
-				// Flush image to disk
-				encoder.finish();
-				os.flush();
-				os.close();
-				os = null;
-
-				Log.i(TAG, "Encoder performance (frames/sec): " + ((double)_frames.size() / ((double)(System.currentTimeMillis() - ts) / 1000)));
-				Log.i(TAG, "Output GIF framerate: " + ((double)_frames.size() / ((double)(lastts - firstts) / 1000000000)));
+				Log.i(TAG, "Encoder performance (frames/sec): " + ((double)frames.length / ((double)(System.currentTimeMillis() - ts) / 1000)));
+				Log.i(TAG, "Output framerate: " + ((double)frames.length / ((double)(frames[frames.length - 1].timestamp - frames[0].timestamp) / 1000000000)));
 				
 				// Tell the gallery about the image
-				ContentValues values = new ContentValues();
-				values.put(MediaStore.Images.Media.DATA, _file.getAbsolutePath());
-				values.put(MediaStore.Images.Media.MIME_TYPE, "image/gif");
-				values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
-				getContext().getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+				addToGallery(getContext(), _file, apng ? "image/png" : "image/gif");
 				
 				// Prevent onCancelled() from deleting the file once it's into the gallery
 				_file = null;
 			}
 			catch (Exception e) {
-				Log.e(TAG, "Failed to write GIF to:" + _file, e);
+				Log.e(TAG, "Failed to write animation to:" + _file, e);
 				cancel(false);
 			}
 			finally {
-				outputbm.recycle();
-				outputbm = null;
-
-				if (inputbm != null) {
-					inputbm.recycle();
-					inputbm = null;
-				}
-
-				if (os != null) {
-					try {
-						os.close();
-					}
-					catch (Exception e) {}
-				}
-				
 				try {
 					_framechan.close();
 					_frameos.close();
@@ -378,6 +1042,135 @@ public class VideoRecorder extends AbstractFilter {
 			return null;
 		}
 		
+		/**
+		 * Transforms and encodes the frames one at a time.
+		 */
+		private void encode(VideoFrame[] frames) throws IOException {
+			FrameEncoder encoder = new FrameEncoder(_file, _transform, _palette);
+			FrameReader reader = new FrameReader(_packer);
+			
+			try {
+				for (int i = 0; i < frames.length; i++) {
+					if (isCancelled()) {
+						return;
+					}
+					
+					VideoFrame frame = frames[i];
+					encoder.add(reader.read(frame), frame.width, frame.height, frame.timestamp);
+					frame.block = null;
+					publishProgress(i + 1);
+				}
+				
+				// Flush image to disk
+				encoder.finish();
+			}
+			finally {
+				encoder.close();
+			}
+		}
+		
+		/**
+		 * Transforms and compresses batches of frames on all cores, and writes them in order.
+		 */
+		private void encodeParallel(final VideoFrame[] frames, boolean apng) throws IOException {
+			final OutputStream os = new BufferedOutputStream(new FileOutputStream(_file));
+			final Queue<EncodeWorker<?>> workers = new ConcurrentLinkedQueue<EncodeWorker<?>>();
+			final byte[][] encoded = new byte[frames.length][];
+			
+			try {
+				final IAnimationWriter<?> writer = createWriter(os, frames.length, apng);
+				final IForBody<VideoFrame[]> body = new IForBody<VideoFrame[]>() {
+					@Override
+					public void run(VideoFrame[] item, int it, int last) {
+						EncodeWorker<?> worker = workers.poll();
+						if (worker == null) {
+							worker = createWorker(writer);
+						}
+						
+						try {
+							worker.encode(item, it, last, encoded);
+						}
+						catch (IOException e) {
+							Log.e(TAG, "Failed to encode frames " + it + " to " + last, e);
+						}
+						finally {
+							workers.add(worker);
+						}
+					}
+				};
+				
+				// Batches bound the memory held by compressed frames waiting to be written
+				final int batchsize = Parallel.getNumberOfCores() * FRAMES_PER_WORKER;
+				for (int first = 0; first < frames.length; first += batchsize) {
+					if (isCancelled()) {
+						return;
+					}
+					
+					final int last = Math.min(first + batchsize, frames.length);
+					Parallel.forRange(body, frames, first, last, FRAMES_PER_WORKER);
+					
+					for (int i = first; i < last; i++) {
+						if (encoded[i] == null) {
+							throw new IOException("Failed to encode frame " + i);
+						}
+						
+						writer.addFrame(encoded[i]);
+						encoded[i] = null;
+						
+						// The last frame of the batch is needed by the next batch
+						if (i > 0) {
+							frames[i - 1].block = null;
+						}
+						
+						publishProgress(i + 1);
+					}
+				}
+				
+				// Flush image to disk
+				writer.finish();
+				os.flush();
+			}
+			finally {
+				os.close();
+				
+				for (EncodeWorker<?> worker : workers) {
+					worker.recycle();
+				}
+			}
+		}
+		
+		/**
+		 * Creates a writer of palette indices if the palette is small enough, otherwise of colors.
+		 */
+		private IAnimationWriter<?> createWriter(OutputStream os, int framecount, boolean apng) throws IOException {
+			final int width = _transform.width, height = _transform.height;
+			if (!apng) {
+				return new GifWriter(os, width, height, _palette.getColors(), true);
+			}
+			
+			if (_indexed) {
+				return new ApngWriter.Indexed(os, width, height, framecount, _palette.getColors());
+			}
+			
+			return new ApngWriter.Truecolor(os, width, height, framecount);
+		}
+		
+		@SuppressWarnings("unchecked")
+		private EncodeWorker<?> createWorker(IAnimationWriter<?> writer) {
+			if (_indexed) {
+				return new IndexWorker((IFrameEncoder<byte[]>)writer.createEncoder());
+			}
+			
+			return new ColorWorker((IFrameEncoder<int[]>)writer.createEncoder());
+		}
+		
+		/**
+		 * @return	The delay before a frame in 1/100 seconds.
+		 */
+		private static int getDelay(VideoFrame[] frames, int i) {
+			return i > 0 ? (int)(frames[i].timestamp / 10000000L - frames[i - 1].timestamp / 10000000L) : 0;
+		}
+		
 		@Override
 		protected void onCancelled() {
 			if (_file != null) {
@@ -404,5 +1197,87 @@ public class VideoRecorder extends AbstractFilter {
 				_listener.onFinish();
 			}
 		}
+		
+		/**
+		 * Buffers of a thread that encodes frames, used by one thread at a time.
+		 */
+		private abstract class EncodeWorker<T> {
+			private final IFrameEncoder<T> _encoder;
+			protected final FrameTransformer _transformer = new FrameTransformer(_transform);
+			protected final FrameReader _reader = new FrameReader(_packer);
+			private final ByteArrayOutputStream _os = new ByteArrayOutputStream();
+			
+			/**
+			 * Transformed pixels of the current and previous frames.
+			 */
+			private T _frame, _previous;
+			
+			public EncodeWorker(IFrameEncoder<T> encoder, T frame, T previous) {
+				_encoder = encoder;
+				_frame = frame;
+				_previous = previous;
+			}
+			
+			/**
+			 * Encodes a range of frames, the frame before the range is transformed again to find the changes.
+			 */
+			public void encode(VideoFrame[] frames, int it, int last, byte[][] output) throws IOException {
+				if (it > 0) {
+					transform(frames[it - 1], _previous);
+				}
+				
+				for (int i = it; i < last; i++) {
+					transform(frames[i], _frame);
+					
+					_os.reset();
+					_encoder.encode(_os, i, _frame, i > 0 ? _previous : null, getDelay(frames, i));
+					output[i] = _os.toByteArray();
+					
+					T frame = _previous;
+					_previous = _frame;
+					_frame = frame;
+				}
+			}
+			
+			public void recycle() {
+				_transformer.recycle();
+				_encoder.release();
+			}
+			
+			protected abstract void transform(VideoFrame frame, T output);
+		}
+		
+		/**
+		 * Encodes frames as palette indices.
+		 */
+		private class IndexWorker extends EncodeWorker<byte[]> {
+			public IndexWorker(IFrameEncoder<byte[]> encoder) {
+				super(encoder, new byte[_transform.width * _transform.height], new byte[_transform.width * _transform.height]);
+			}
+			
+			@Override
+			protected void transform(VideoFrame frame, byte[] indices) {
+				// Frames of an indexed palette are always packed, so they can be rotated as indices
+				if (_transformer.transform(_reader.readIndices(frame), frame.width, frame.height, indices)) {
+					return;
+				}
+				
+				_transformer.transform(_reader.read(frame), frame.width, frame.height, _packer, indices);
+			}
+		}
+		
+		/**
+		 * Encodes frames as colors, for palettes that are too large to index.
+		 */
+		private class ColorWorker extends EncodeWorker<int[]> {
+			public ColorWorker(IFrameEncoder<int[]> encoder) {
+				super(encoder, new int[_transform.width * _transform.height], new int[_transform.width * _transform.height]);
+			}
+			
+			@Override
+			protected void transform(VideoFrame frame, int[] colors) {
+				_transformer.transform(_reader.read(frame), frame.width, frame.height, colors);
+			}
+		}
 	}
 }
@@ -0,0 +1,49 @@
+package se.embargo.retroboy.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import android.content.res.AssetManager;
+
+/**
+ * Reads cache entries bundled as application assets.
+ */
+public class AssetCacheStorage implements ICacheStorage {
+	private final AssetManager _assets;
+	private final String _directory;
+	
+	/**
+	 * @param assets	Asset manager, e.g. Context.getAssets()
+	 * @param directory	Asset directory holding the entries
+	 */
+	public AssetCacheStorage(AssetManager assets, String directory) {
+		_assets = assets;
+		_directory = directory;
+	}
+	
+	@Override
+	public ByteBuffer read(String name) throws IOException {
+		// Assets are compressed so they have to be inflated rather than mapped
+		InputStream is = _assets.open(_directory + "/" + name, AssetManager.ACCESS_STREAMING);
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream(64 * 1024);
+			byte[] buffer = new byte[16 * 1024];
+			
+			for (int count; (count = is.read(buffer)) >= 0; ) {
+				os.write(buffer, 0, count);
+			}
+			
+			return ByteBuffer.wrap(os.toByteArray());
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	@Override
+	public void write(String name, ByteBuffer data) throws IOException {
+		throw new IOException("Assets are read-only");
+	}
+}
@@ -0,0 +1,32 @@
+package se.embargo.retroboy.filter;
+
+import java.nio.IntBuffer;
+
+import android.graphics.Bitmap;
+
+/**
+ * Frame buffer that also carries the finished Android bitmap of the output image.
+ */
+public class BitmapImageBuffer extends IImageFilter.ImageBuffer {
+	/**
+	 * Finished bitmap of output image.
+	 */
+	public Bitmap bitmap;
+	
+	public BitmapImageBuffer(byte[] frame, int framewidth, int frameheight) {
+		super(frame, framewidth, frameheight);
+	}
+
+	public BitmapImageBuffer(int framewidth, int frameheight) {
+		super(framewidth, frameheight);
+	}
+	
+	public BitmapImageBuffer(Bitmap input) {
+		super(input.getWidth(), input.getHeight());
+		imagewidth = framewidth;
+		imageheight = frameheight;
+		image = IntBuffer.wrap(new int[imagewidth * imageheight + imagewidth * 4]);
+		bitmap = input;
+		bitmap.copyPixelsToBuffer(image);
+	}
+}
@@ -5,7 +5,8 @@ import java.nio.IntBuffer;
 
 public class BitmapImageFilter extends AbstractFilter {
 	@Override
-	public void accept(ImageBuffer buffer) {
+	public void accept(ImageBuffer input) {
+		final BitmapImageBuffer buffer = (BitmapImageBuffer)input;
 		final int imagewidth = buffer.bitmap.getWidth(),
 				  imageheight = buffer.bitmap.getHeight(),
 				  imagesize = imagewidth * imageheight + imagewidth * 4;
@@ -9,7 +9,9 @@ public class ImageBitmapFilter extends AbstractFilter {
 	private static final String TAG = "ImageBitmapFilter";
 
 	@Override
-	public void accept(ImageBuffer buffer) {
+	public void accept(ImageBuffer input) {
+		final BitmapImageBuffer buffer = (BitmapImageBuffer)input;
+		
 		// Change the bitmap dimensions
 		if (buffer.bitmap == null || buffer.bitmap.getWidth() != buffer.imagewidth || buffer.bitmap.getHeight() != buffer.imageheight) {
 			Log.d(TAG, "Allocating Bitmap for " + buffer.imagewidth + "x" + buffer.imageheight + " pixels (" + buffer.bitmap + ")");
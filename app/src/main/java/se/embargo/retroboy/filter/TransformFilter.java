@@ -1,10 +1,29 @@
 package se.embargo.retroboy.filter;
 
+import java.nio.IntBuffer;
+
 import se.embargo.core.graphic.Bitmaps;
+import se.embargo.retroboy.Pictures;
+import se.embargo.retroboy.graphic.PixelTransform;
+import android.graphics.Bitmap;
 
+/**
+ * Rotates, mirrors and scales the image pixels, so it goes before the filter that creates the bitmap.
+ */
 public class TransformFilter extends AbstractFilter {
 	private Bitmaps.Transform _transform;
 	
+	/**
+	 * Nearest pixel transform for the current input size, or null if the matrix needs resampling.
+	 */
+	private PixelTransform _kernel = null;
+	private int _kernelwidth = -1, _kernelheight = -1;
+	
+	/**
+	 * Buffer for the transformed pixels.
+	 */
+	private int[] _pixels = null;
+	
 	public TransformFilter(Bitmaps.Transform transform) {
 		_transform = transform;
 	}
@@ -21,6 +40,36 @@ public class TransformFilter extends AbstractFilter {
 
 	@Override
 	public void accept(ImageBuffer buffer) {
-		buffer.bitmap = Bitmaps.transform(buffer.bitmap, _transform);
+		final int pixelcount = _transform.width * _transform.height;
+		if (_pixels == null || _pixels.length != pixelcount) {
+			_pixels = new int[pixelcount];
+		}
+		
+		if (buffer.imagewidth != _kernelwidth || buffer.imageheight != _kernelheight) {
+			_kernel = Pictures.createPixelTransform(_transform, buffer.imagewidth, buffer.imageheight);
+			_kernelwidth = buffer.imagewidth;
+			_kernelheight = buffer.imageheight;
+		}
+		
+		if (_kernel != null) {
+			_kernel.apply(buffer.image.array(), _pixels);
+		}
+		else {
+			// Resample the image through a bitmap
+			Bitmap input = Bitmap.createBitmap(buffer.imagewidth, buffer.imageheight, Bitmap.Config.ARGB_8888);
+			input.copyPixelsFromBuffer(IntBuffer.wrap(buffer.image.array(), 0, buffer.imagewidth * buffer.imageheight));
+			
+			Bitmap output = Bitmaps.transform(input, _transform);
+			output.copyPixelsToBuffer(IntBuffer.wrap(_pixels));
+			input.recycle();
+			
+			if (output != input) {
+				output.recycle();
+			}
+		}
+		
+		buffer.image = IntBuffer.wrap(_pixels);
+		buffer.imagewidth = _transform.width;
+		buffer.imageheight = _transform.height;
 	}
 }
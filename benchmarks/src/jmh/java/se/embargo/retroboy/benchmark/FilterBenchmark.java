@@ -0,0 +1,204 @@
+package se.embargo.retroboy.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.embargo.retroboy.cache.FileCacheStorage;
+import se.embargo.retroboy.cache.ICacheStorage;
+import se.embargo.retroboy.color.BucketPalette;
+import se.embargo.retroboy.color.DistancePalette;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.Palettes;
+import se.embargo.retroboy.filter.AtkinsonFilter;
+import se.embargo.retroboy.filter.BayerFilter;
+import se.embargo.retroboy.filter.CompositeFilter;
+import se.embargo.retroboy.filter.ErrorDiffusionFilter;
+import se.embargo.retroboy.filter.HalftoneFilter;
+import se.embargo.retroboy.filter.IImageFilter;
+import se.embargo.retroboy.filter.IImageFilter.ImageBuffer;
+import se.embargo.retroboy.filter.PaletteFilter;
+import se.embargo.retroboy.filter.Pxl2000Filter;
+import se.embargo.retroboy.filter.RasterFilter;
+import se.embargo.retroboy.filter.YliluomaFilter;
+import se.embargo.retroboy.filter.YliluomaTriFilter;
+import se.embargo.retroboy.filter.YuvFilter;
+import se.embargo.retroboy.graphic.DiffusionKernel;
+import se.embargo.retroboy.graphic.DitherMatrix;
+import se.embargo.retroboy.graphic.DitherMatrixes;
+
+/**
+ * Measures each filter on synthetic NV21 frames. 
+ * 
+ * Every benchmark method counts one operation per pixel, so the reported scores are in 
+ * nanoseconds per pixel. Run with the gc profiler to get allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterBenchmark {
+	@State(Scope.Benchmark)
+	public static abstract class FrameState {
+		/**
+		 * Filter to measure, "yuv" and "yuvbox" decode the raw frame while "composite" runs the default preview chain minus the bitmap copy
+		 * and "fused" runs the same chain as a single decode and dither pass. "atkinsonserial" runs the error diffusion without the wavefront.
+		 */
+		@Param({"yuv", "yuvbox", "bayer", "bayerbluenoise", "yliluoma", "yliluomatri", "raster", "atkinson", "atkinsonserial", "diffusion", "halftone", "pxl2000", "palette", "composite", "fused"})
+		public String filter;
+		
+		private final int _width, _height;
+		private IImageFilter _filter;
+		private ImageBuffer _buffer;
+		
+		/**
+		 * Decoded frame used to restore the input before running an effect filter. 
+		 */
+		private int[] _input;
+		private int _threshold;
+		
+		protected FrameState(int width, int height) {
+			_width = width;
+			_height = height;
+		}
+		
+		@Setup(Level.Trial)
+		public void setup() {
+			final ICacheStorage storage = new FileCacheStorage(new File(System.getProperty("java.io.tmpdir"), "retroboy-benchmarks"));
+			final DitherMatrix matrix = DitherMatrixes.MATRIX_4x4;
+			boolean decode = false;
+			
+			if ("yuv".equals(filter)) {
+				_filter = new YuvFilter(_width, _height, 0, true, true);
+				decode = true;
+			}
+			else if ("yuvbox".equals(filter)) {
+				_filter = new YuvFilter(_width / 2, _height / 2, 0, true, true, YuvFilter.Downsample.Box);
+				decode = true;
+			}
+			else if ("bayer".equals(filter)) {
+				_filter = new BayerFilter(new DistancePalette(Distances.YUV, Palettes.GAMEBOY_CAMERA), matrix, BayerFilter.PaletteType.Threshold);
+			}
+			else if ("bayerbluenoise".equals(filter)) {
+				_filter = new BayerFilter(new DistancePalette(Distances.YUV, Palettes.GAMEBOY_CAMERA), DitherMatrixes.createBlueNoise(storage), BayerFilter.PaletteType.Threshold);
+			}
+			else if ("yliluoma".equals(filter)) {
+				_filter = new YliluomaFilter(storage, null, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED);
+			}
+			else if ("yliluomatri".equals(filter)) {
+				_filter = new YliluomaTriFilter(storage, null, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED);
+			}
+			else if ("raster".equals(filter)) {
+				_filter = new RasterFilter(storage, null, Distances.LUV, Palettes.AMSTRAD_CPC464, matrix, 50);
+			}
+			else if ("atkinson".equals(filter)) {
+				_filter = new AtkinsonFilter(true);
+			}
+			else if ("atkinsonserial".equals(filter)) {
+				_filter = new AtkinsonFilter(false);
+			}
+			else if ("diffusion".equals(filter)) {
+				_filter = new ErrorDiffusionFilter(new BucketPalette(new DistancePalette(Distances.YUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED)), DiffusionKernel.FLOYD_STEINBERG);
+			}
+			else if ("halftone".equals(filter)) {
+				_filter = new HalftoneFilter();
+			}
+			else if ("pxl2000".equals(filter)) {
+				_filter = new Pxl2000Filter();
+			}
+			else if ("palette".equals(filter)) {
+				_filter = new PaletteFilter(new BucketPalette(new DistancePalette(Distances.YUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED)));
+			}
+			else if ("composite".equals(filter) || "fused".equals(filter)) {
+				CompositeFilter composite = new CompositeFilter();
+				composite.add(new YuvFilter(_width, _height, 0, false, true));
+				composite.add(new BayerFilter(new DistancePalette(Distances.YUV, Palettes.GAMEBOY_CAMERA), matrix, BayerFilter.PaletteType.Threshold));
+				composite.setFused("fused".equals(filter));
+				_filter = composite;
+				decode = true;
+			}
+			else {
+				throw new IllegalArgumentException("Unknown filter " + filter);
+			}
+			
+			// Decode the frame once to produce the input for the effect filters
+			_buffer = new ImageBuffer(Frames.createNV21(_width, _height), _width, _height);
+			_buffer.reset(_buffer.frame);
+			new YuvFilter(_width, _height, 0, _filter.isColorFilter(), true).accept(_buffer);
+			_input = decode ? null : _buffer.image.array().clone();
+			_threshold = _buffer.threshold;
+		}
+		
+		public ImageBuffer run() {
+			_buffer.reset(_buffer.frame);
+			
+			if (_input != null) {
+				System.arraycopy(_input, 0, _buffer.image.array(), 0, _input.length);
+				_buffer.threshold = _threshold;
+			}
+			
+			_filter.accept(_buffer);
+			return _buffer;
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Frame320x240 extends FrameState {
+		public Frame320x240() {
+			super(320, 240);
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Frame480x360 extends FrameState {
+		public Frame480x360() {
+			super(480, 360);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Frame640x480 extends FrameState {
+		public Frame640x480() {
+			super(640, 480);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Frame1280x720 extends FrameState {
+		public Frame1280x720() {
+			super(1280, 720);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(320 * 240)
+	public ImageBuffer frame320x240(Frame320x240 state) {
+		return state.run();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(480 * 360)
+	public ImageBuffer frame480x360(Frame480x360 state) {
+		return state.run();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(640 * 480)
+	public ImageBuffer frame640x480(Frame640x480 state) {
+		return state.run();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(1280 * 720)
+	public ImageBuffer frame1280x720(Frame1280x720 state) {
+		return state.run();
+	}
+}
@@ -0,0 +1,44 @@
+package se.embargo.retroboy.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic camera frames.
+ */
+public class Frames {
+	/**
+	 * Creates a NV21 frame containing gradients, hard edges and some sensor noise.
+	 * @param width		Frame width
+	 * @param height	Frame height
+	 * @return			Y plane followed by interleaved V/U samples at half resolution
+	 */
+	public static byte[] createNV21(int width, int height) {
+		final Random random = new Random(width * 31 + height);
+		final byte[] frame = new byte[width * height * 3 / 2];
+		
+		// Luminance is a diagonal gradient with a checkered overlay
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int lum = 16 + (x + y) * 219 / (width + height);
+				if (((x / 32) + (y / 32)) % 2 == 0) {
+					lum += 24;
+				}
+				
+				lum += random.nextInt(9) - 4;
+				frame[x + y * width] = (byte)Math.max(0, Math.min(lum, 255));
+			}
+		}
+		
+		// Chrominance sweeps across the color wheel
+		for (int y = 0, uvp = width * height; y < height / 2; y++) {
+			for (int x = 0; x < width / 2; x++, uvp += 2) {
+				final double angle = 2 * Math.PI * x / (width / 2);
+				final double saturation = 112d * y / (height / 2);
+				frame[uvp] = (byte)(128 + (int)(Math.sin(angle) * saturation));
+				frame[uvp + 1] = (byte)(128 + (int)(Math.cos(angle) * saturation));
+			}
+		}
+		
+		return frame;
+	}
+}
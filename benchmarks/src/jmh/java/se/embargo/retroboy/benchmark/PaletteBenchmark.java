@@ -0,0 +1,94 @@
+package se.embargo.retroboy.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.embargo.retroboy.color.BucketPalette;
+import se.embargo.retroboy.color.DistancePalette;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.Palettes;
+
+/**
+ * Measures the cost of building and looking up colors in bucket palettes of different precision.
+ *
+ * The lookup benchmark counts one operation per color, so its score is in nanoseconds per lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PaletteBenchmark {
+	/**
+	 * Number of colors looked up per invocation.
+	 */
+	private static final int COLORS = 64 * 1024;
+
+	@State(Scope.Benchmark)
+	public static class PaletteState {
+		/**
+		 * Number of bits stored per color channel.
+		 */
+		@Param({"4", "5", "6"})
+		public int bits;
+
+		/**
+		 * Palette to look up colors in.
+		 */
+		@Param({"chronocross", "commodore64"})
+		public String palette;
+
+		private int[] _colors;
+		private DistancePalette _distance;
+		private BucketPalette _bucket;
+
+		/**
+		 * Camera like colors, neighbouring colors are similar.
+		 */
+		private final int[] _input = new int[COLORS];
+
+		@Setup(Level.Trial)
+		public void setup() {
+			_colors = "chronocross".equals(palette) ? Palettes.CHRONO_CROSS : Palettes.COMMODORE_64_GAMMA_ADJUSTED;
+			_distance = new DistancePalette(Distances.LUV, _colors);
+			_bucket = new BucketPalette(_distance, bits);
+
+			final Random random = new Random(bits);
+			int r = 128, g = 128, b = 128;
+			for (int i = 0; i < _input.length; i++) {
+				r = Math.max(0, Math.min(r + random.nextInt(9) - 4, 255));
+				g = Math.max(0, Math.min(g + random.nextInt(9) - 4, 255));
+				b = Math.max(0, Math.min(b + random.nextInt(9) - 4, 255));
+				_input[i] = r | (g << 8) | (b << 16);
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COLORS)
+	public int lookup(PaletteState state) {
+		final BucketPalette palette = state._bucket;
+		final int[] input = state._input;
+		int result = 0;
+
+		for (int i = 0; i < input.length; i++) {
+			final int color = input[i];
+			result += palette.getNearestColor(color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff);
+		}
+
+		return result;
+	}
+
+	@Benchmark
+	public BucketPalette build(PaletteState state) {
+		return new BucketPalette(state._distance, state.bits);
+	}
+}
@@ -0,0 +1,66 @@
+package se.embargo.retroboy.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores cache entries as files in a directory.
+ */
+public class FileCacheStorage implements ICacheStorage {
+	private final File _directory;
+	
+	/**
+	 * @param directory	Directory to keep the entries in, e.g. Context.getFilesDir()
+	 */
+	public FileCacheStorage(File directory) {
+		_directory = directory;
+	}
+	
+	@Override
+	public ByteBuffer read(String name) throws IOException {
+		FileInputStream is = new FileInputStream(new File(_directory, name));
+		try {
+			// The mapping stays valid after the channel is closed
+			FileChannel channel = is.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	@Override
+	public void write(String name, ByteBuffer data) throws IOException {
+		_directory.mkdirs();
+		
+		// Write to a temporary file and rename it into place so a crash can't leave a truncated entry
+		File file = new File(_directory, name), 
+			 tmpfile = new File(_directory, name + ".tmp");
+		FileOutputStream os = new FileOutputStream(tmpfile);
+		
+		try {
+			FileChannel channel = os.getChannel();
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+			
+			channel.force(true);
+		}
+		finally {
+			os.close();
+		}
+		
+		if (!tmpfile.renameTo(file)) {
+			file.delete();
+			
+			if (!tmpfile.renameTo(file)) {
+				tmpfile.delete();
+				throw new IOException("Failed to replace " + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package se.embargo.retroboy.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Persistent storage for precomputed tables.
+ */
+public interface ICacheStorage {
+	/**
+	 * Reads an entry.
+	 * @param name	Name of entry
+	 * @return		Contents of the entry, possibly memory mapped
+	 * @throws	IOException	If the entry doesn't exist or can't be read
+	 */
+	public ByteBuffer read(String name) throws IOException;
+	
+	/**
+	 * Creates or replaces an entry. Readers should never observe a partially written entry.
+	 * @param name	Name of entry
+	 * @param data	Contents to write, from its position to its limit
+	 * @throws	IOException	If the entry can't be written
+	 */
+	public void write(String name, ByteBuffer data) throws IOException;
+}
@@ -0,0 +1,45 @@
+package se.embargo.retroboy.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads entries from bundled storage first, e.g. tables shipped with the 
+ * application, and falls back to a writable storage for everything else.
+ * TableFile also falls back when a bundled entry is outdated or corrupt, so
+ * it can't shadow a table that was rebuilt into the writable storage.
+ */
+public class LayeredCacheStorage implements ICacheStorage {
+	private final ICacheStorage _bundled, _storage;
+	
+	/**
+	 * @param bundled	Read-only storage that is checked first
+	 * @param storage	Storage that is checked next and receives all writes
+	 */
+	public LayeredCacheStorage(ICacheStorage bundled, ICacheStorage storage) {
+		_bundled = bundled;
+		_storage = storage;
+	}
+	
+	@Override
+	public ByteBuffer read(String name) throws IOException {
+		try {
+			return _bundled.read(name);
+		}
+		catch (IOException e) {
+			return _storage.read(name);
+		}
+	}
+
+	@Override
+	public void write(String name, ByteBuffer data) throws IOException {
+		_storage.write(name, data);
+	}
+	
+	/**
+	 * @return	The layers in the order they're checked.
+	 */
+	public ICacheStorage[] getLayers() {
+		return new ICacheStorage[] {_bundled, _storage};
+	}
+}
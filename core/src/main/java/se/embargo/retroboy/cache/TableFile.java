@@ -0,0 +1,178 @@
+package se.embargo.retroboy.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Binary format for cached integer tables.
+ *
+ * The file starts with a header of little endian ints; magic number, format
+ * version, table version, number of entries and a CRC32 of the payload. The
+ * payload follows as little endian ints, shorts or bytes, which is the native
+ * order on both ARM and x86 so the table can be copied out in bulk.
+ */
+public class TableFile {
+	private static final int MAGIC = 0x42545252;
+
+	/**
+	 * Version of the file layout, independent of the table contents.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int HEADER_SIZE = 5 * 4;
+
+	/**
+	 * Reads a table from storage.
+	 * @param storage	Storage to read from
+	 * @param name		Name of entry
+	 * @param version	Expected version of the table contents
+	 * @param table		Table to fill, its length must match the stored table
+	 * @return			True if the table was read, false if it's missing, outdated or corrupt
+	 */
+	public static boolean read(ICacheStorage storage, String name, int version, int[] table) {
+		ByteBuffer payload = read(storage, name, version, table.length, 4);
+		if (payload == null) {
+			return false;
+		}
+
+		payload.asIntBuffer().get(table);
+		return true;
+	}
+
+	/**
+	 * Reads a table of shorts from storage.
+	 * @see	#read(ICacheStorage, String, int, int[])
+	 */
+	public static boolean read(ICacheStorage storage, String name, int version, short[] table) {
+		ByteBuffer payload = read(storage, name, version, table.length, 2);
+		if (payload == null) {
+			return false;
+		}
+
+		payload.asShortBuffer().get(table);
+		return true;
+	}
+
+	/**
+	 * Reads a table of bytes from storage.
+	 * @see	#read(ICacheStorage, String, int, int[])
+	 */
+	public static boolean read(ICacheStorage storage, String name, int version, byte[] table) {
+		ByteBuffer payload = read(storage, name, version, table.length, 1);
+		if (payload == null) {
+			return false;
+		}
+
+		payload.get(table);
+		return true;
+	}
+
+	/**
+	 * Writes a table to storage.
+	 * @param storage	Storage to write to
+	 * @param name		Name of entry
+	 * @param version	Version of the table contents
+	 * @param table		Table to write
+	 * @throws	IOException	If the entry can't be written
+	 */
+	public static void write(ICacheStorage storage, String name, int version, int[] table) throws IOException {
+		ByteBuffer data = allocate(table.length, 4);
+		data.asIntBuffer().put(table);
+		write(storage, name, version, table.length, data);
+	}
+
+	/**
+	 * Writes a table of shorts to storage.
+	 * @see	#write(ICacheStorage, String, int, int[])
+	 */
+	public static void write(ICacheStorage storage, String name, int version, short[] table) throws IOException {
+		ByteBuffer data = allocate(table.length, 2);
+		data.asShortBuffer().put(table);
+		write(storage, name, version, table.length, data);
+	}
+
+	/**
+	 * Writes a table of bytes to storage.
+	 * @see	#write(ICacheStorage, String, int, int[])
+	 */
+	public static void write(ICacheStorage storage, String name, int version, byte[] table) throws IOException {
+		ByteBuffer data = allocate(table.length, 1);
+		data.duplicate().put(table);
+		write(storage, name, version, table.length, data);
+	}
+
+	/**
+	 * @param count		Number of entries in the table
+	 * @param size		Size of each entry in bytes
+	 * @return			The verified payload positioned at its start, or null if it's missing, outdated or corrupt
+	 */
+	private static ByteBuffer read(ICacheStorage storage, String name, int version, int count, int size) {
+		// An invalid entry in one layer must not hide a valid one in the next
+		if (storage instanceof LayeredCacheStorage) {
+			for (ICacheStorage layer : ((LayeredCacheStorage)storage).getLayers()) {
+				ByteBuffer payload = read(layer, name, version, count, size);
+				if (payload != null) {
+					return payload;
+				}
+			}
+			
+			return null;
+		}
+		
+		ByteBuffer data;
+		try {
+			data = storage.read(name);
+		}
+		catch (IOException e) {
+			return null;
+		}
+
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		if (data.remaining() != HEADER_SIZE + count * size ||
+			data.getInt() != MAGIC ||
+			data.getInt() != FORMAT_VERSION ||
+			data.getInt() != version ||
+			data.getInt() != count) {
+			return null;
+		}
+
+		// Verify the payload before touching the table
+		int checksum = data.getInt();
+		byte[] payload = new byte[count * size];
+		data.get(payload);
+
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		if ((int)crc.getValue() != checksum) {
+			return null;
+		}
+
+		return ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return	A buffer positioned at the start of the payload.
+	 */
+	private static ByteBuffer allocate(int count, int size) {
+		ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + count * size).order(ByteOrder.LITTLE_ENDIAN);
+		data.position(HEADER_SIZE);
+		return data;
+	}
+
+	private static void write(ICacheStorage storage, String name, int version, int count, ByteBuffer data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data.array(), HEADER_SIZE, data.capacity() - HEADER_SIZE);
+
+		data.position(0);
+		data.putInt(MAGIC);
+		data.putInt(FORMAT_VERSION);
+		data.putInt(version);
+		data.putInt(count);
+		data.putInt((int)crc.getValue());
+
+		data.clear();
+		storage.write(name, data);
+	}
+}
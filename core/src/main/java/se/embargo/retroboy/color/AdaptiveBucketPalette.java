@@ -0,0 +1,214 @@
+package se.embargo.retroboy.color;
+
+import se.embargo.core.graphic.color.IPalette;
+
+/**
+ * Bucket palette whose colors can be replaced, refreshing only the buckets whose nearest color
+ * changed.
+ *
+ * A palette is updated from the previous one, so buckets whose nearest color is still present only
+ * need to be compared against the nearest added color. When many colors were added, or the order of
+ * the remaining ones changed, every bucket is searched instead, which gives the same result as a
+ * BucketPalette of the same colors. Lookups must not overlap an update, so two palettes are normally
+ * alternated between, one being updated while the other one is in use. The colors change over time,
+ * so it doesn't pose as a fixed indexed palette.
+ */
+public class AdaptiveBucketPalette implements IPalette {
+	/**
+	 * Maximum number of colors, so that indices fit in the buckets.
+	 */
+	public static final int MAX_COLORS = 256;
+
+	/**
+	 * Every bucket is searched when more than 1/n of the colors were added, since comparing against
+	 * them would cost about as much.
+	 */
+	private static final int ADDED_FRACTION = 4;
+
+	private static final int[] EMPTY = new int[0];
+
+	/**
+	 * Distance metric used to find the nearest colors.
+	 */
+	private final IColorDistance _distance;
+
+	/**
+	 * Number of most significant bits to store per color channel.
+	 */
+	private final int _bits;
+
+	/**
+	 * Number of bits to shift a color.
+	 */
+	private final int _step;
+
+	/**
+	 * Number of bits to shift green and blue colors.
+	 */
+	private final int _gsb, _bsb;
+
+	/**
+	 * Red, green and blue bit masks.
+	 */
+	private final int _rm, _gm, _bm;
+
+	/**
+	 * Each bucket corresponds to an RGB color and stores the index of its nearest color.
+	 */
+	private final byte[] _buckets;
+
+	/**
+	 * Index of each color of the previous palette in the current one, or -1 if it was removed.
+	 */
+	private final int[] _remap = new int[MAX_COLORS];
+
+	/**
+	 * Indices of the colors that weren't in the previous palette.
+	 */
+	private final int[] _added = new int[MAX_COLORS];
+
+	/**
+	 * Searches all current colors and the added colors, reused between updates.
+	 */
+	private final NearestColorIndex _index, _addedindex;
+
+	/**
+	 * Current colors, empty until the first update.
+	 */
+	private int[] _colors = EMPTY;
+
+	/**
+	 * @param distance	Distance metric used to find the nearest colors
+	 * @param bits		Number of bits per channel, 4 (4K buckets), 5 (32K) or 6 (256K)
+	 */
+	public AdaptiveBucketPalette(IColorDistance distance, int bits) {
+		if (bits < 4 || bits > 6) {
+			throw new IllegalArgumentException("Bucket palettes support 4, 5 or 6 bits per channel");
+		}
+
+		_distance = distance;
+		_bits = bits;
+		_step = 8 - bits;
+		_gsb = bits;
+		_bsb = bits * 2;
+		_rm = (1 << bits) - 1;
+		_gm = _rm << _gsb;
+		_bm = _rm << _bsb;
+		_buckets = new byte[1 << (bits * 3)];
+		_index = NearestColorIndex.create(distance, MAX_COLORS);
+		_addedindex = NearestColorIndex.create(distance, MAX_COLORS);
+	}
+
+	public AdaptiveBucketPalette(IColorDistance distance) {
+		this(distance, BucketPalette.DEFAULT_BITS);
+	}
+
+	/**
+	 * Replaces the colors of this palette.
+	 * @param colors	New colors, which are copied
+	 * @param previous	Palette to update from, or null to search every bucket
+	 */
+	public void update(int[] colors, AdaptiveBucketPalette previous) {
+		if (colors.length > MAX_COLORS) {
+			throw new IllegalArgumentException("Adaptive palettes support up to " + MAX_COLORS + " colors");
+		}
+
+		if (previous == this) {
+			throw new IllegalArgumentException("Palettes can't be updated from themselves");
+		}
+
+		if (_colors.length != colors.length) {
+			_colors = new int[colors.length];
+		}
+
+		System.arraycopy(colors, 0, _colors, 0, colors.length);
+
+		// Find the colors that were removed and added, duplicates are represented by their first index
+		final int[] prevcolors = (previous != null && previous._bits == _bits) ? previous._colors : EMPTY;
+		boolean removed = false, reordered = false;
+		for (int i = 0, last = -1; i < prevcolors.length; i++) {
+			_remap[i] = indexOf(_colors, prevcolors[i]);
+			if (_remap[i] < 0) {
+				removed = true;
+			}
+			else if (indexOf(prevcolors, prevcolors[i]) == i) {
+				// Equally near colors are resolved by their order, which must not have changed
+				reordered |= _remap[i] < last;
+				last = _remap[i];
+			}
+		}
+
+		int added = 0;
+		for (int i = 0; i < _colors.length; i++) {
+			if (indexOf(_colors, _colors[i]) == i && indexOf(prevcolors, _colors[i]) < 0) {
+				_added[added++] = i;
+			}
+		}
+
+		// Buckets whose color was removed need a full search
+		final boolean full = prevcolors.length == 0 || reordered || added * ADDED_FRACTION > _colors.length;
+		if (full || removed) {
+			_index.update(_colors, null, _colors.length);
+		}
+
+		if (!full && added > 0) {
+			_addedindex.update(_colors, _added, added);
+		}
+
+		for (int i = 0; i < _buckets.length; i++) {
+			final int r1 = (i & _rm) << _step,
+					  g1 = ((i & _gm) >> _gsb) << _step,
+					  b1 = ((i & _bm) >> _bsb) << _step;
+
+			int result = full ? -1 : _remap[previous._buckets[i] & 0xff];
+			if (result < 0) {
+				result = _index.getNearestIndex(r1, g1, b1);
+			}
+			else if (added > 0) {
+				// The nearest color is either the previous one or the nearest added color
+				final int candidate = _addedindex.getNearestIndex(r1, g1, b1),
+						  color = _colors[result],
+						  other = _colors[candidate];
+				final double distance = _addedindex.getDistance(r1, g1, b1, color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff),
+							 otherdistance = _addedindex.getDistance(r1, g1, b1, other & 0xff, (other >> 8) & 0xff, (other >> 16) & 0xff);
+
+				if (otherdistance < distance || (otherdistance == distance && candidate < result)) {
+					result = candidate;
+				}
+			}
+
+			_buckets[i] = (byte)result;
+		}
+	}
+
+	@Override
+	public int getNearestColor(final int r1, final int g1, final int b1) {
+		return _colors[_buckets[(r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb)] & 0xff];
+	}
+
+	@Override
+	public int getColorCount() {
+		return _colors.length;
+	}
+
+	public int[] getColors() {
+		return _colors;
+	}
+
+	public int getIndex(final int color) {
+		return _buckets[((color & 0xff) >> _step) | ((((color >> 8)  & 0xff) >> _step) << _gsb) | ((((color >> 16)  & 0xff) >> _step) << _bsb)] & 0xff;
+	}
+
+	/**
+	 * @return	The first index of a color, or -1 if it's missing.
+	 */
+	private static int indexOf(int[] colors, int color) {
+		for (int i = 0; i < colors.length; i++) {
+			if ((color & 0xffffff) == (colors[i] & 0xffffff)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,182 @@
+package se.embargo.retroboy.color;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.core.graphic.color.IIndexedPalette;
+import se.embargo.retroboy.cache.ICacheStorage;
+import se.embargo.retroboy.cache.TableFile;
+
+/**
+ * Approximates an arbitrary palette by expanding it to a larger regular one.
+ */
+public class BucketPalette implements IIndexedPalette {
+	private static final Logger LOG = Logger.getLogger(BucketPalette.class.getName());
+
+	/**
+	 * Version number for the cache files
+	 */
+	private static final int CACHE_VERSION_NUMBER = 1;
+
+	/**
+	 * Number of most significant bits to store per color channel by default.
+	 */
+	public static final int DEFAULT_BITS = 4;
+
+	/**
+	 * Number of most significant bits to store per color channel.
+	 */
+	private final int _bits;
+
+	/**
+	 * Number of bits to shift a color.
+	 */
+	private final int _step;
+
+	/**
+	 * Palette to sample colors from.
+	 */
+	private final IIndexedPalette _palette;
+
+	/**
+	 * Colors of the inner palette.
+	 */
+	private final int[] _colors;
+
+	/**
+	 * Each bucket corresponds to an RGB color and stores the index of the color the inner palette
+	 * returned. Palettes of up to 256 colors use bytes, larger ones use shorts.
+	 */
+	private final byte[] _bytes;
+	private final short[] _shorts;
+
+	/**
+	 * Number of bits to shift green and blue colors.
+	 */
+	private final int _gsb, _bsb;
+
+	/**
+	 * Red, green and blue bit masks.
+	 */
+	private final int _rm, _gm, _bm;
+
+	/**
+	 * @param palette	Palette to sample colors from
+	 * @param bits		Number of bits per channel, 4 (4K buckets), 5 (32K) or 6 (256K)
+	 * @param storage	Storage for cached buckets, or null to always build them
+	 * @param name		Name that identifies the inner palette together with its colors, e.g. its color distance
+	 */
+	public BucketPalette(IIndexedPalette palette, int bits, ICacheStorage storage, String name) {
+		if (bits < 4 || bits > 6) {
+			throw new IllegalArgumentException("Bucket palettes support 4, 5 or 6 bits per channel");
+		}
+
+		_palette = palette;
+		_colors = palette.getColors();
+		_bits = bits;
+		_step = 8 - bits;
+		_gsb = bits;
+		_bsb = bits * 2;
+		_rm = (1 << bits) - 1;
+		_gm = _rm << _gsb;
+		_bm = _rm << _bsb;
+
+		final int count = 1 << (bits * 3);
+		if (_colors.length <= 256) {
+			_bytes = new byte[count];
+			_shorts = null;
+		}
+		else {
+			_bytes = null;
+			_shorts = new short[count];
+		}
+
+		// Read cached buckets, missing, outdated or corrupt files are rebuilt
+		final String filename = storage != null ?
+			"bucket" + bits + "-" + name + "-" + Integer.toHexString(Arrays.hashCode(_colors)) + ".bin" : null;
+		if (filename != null &&
+			(_bytes != null ? TableFile.read(storage, filename, CACHE_VERSION_NUMBER, _bytes) :
+							  TableFile.read(storage, filename, CACHE_VERSION_NUMBER, _shorts))) {
+			return;
+		}
+
+		// Initialize the buckets
+		Parallel.forRange(new IForBody<IIndexedPalette>() {
+			@Override
+			public void run(IIndexedPalette item, int it, int last) {
+				for (int i = it; i < last; i++) {
+					final int r1 = (i & _rm) << _step,
+							  g1 = ((i & _gm) >> _gsb) << _step,
+							  b1 = ((i & _bm) >> _bsb) << _step;
+
+					final int index = item.getIndex(item.getNearestColor(r1, g1, b1));
+					if (_bytes != null) {
+						_bytes[i] = (byte)index;
+					}
+					else {
+						_shorts[i] = (short)index;
+					}
+				}
+			}
+		}, _palette, 0, count);
+
+		if (filename != null) {
+			try {
+				if (_bytes != null) {
+					TableFile.write(storage, filename, CACHE_VERSION_NUMBER, _bytes);
+				}
+				else {
+					TableFile.write(storage, filename, CACHE_VERSION_NUMBER, _shorts);
+				}
+			}
+			catch (IOException e) {
+				LOG.warning("Failed to write " + filename + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * @param palette	Palette to sample colors from
+	 * @param bits		Number of bits per channel, 4 (4K buckets), 5 (32K) or 6 (256K)
+	 */
+	public BucketPalette(IIndexedPalette palette, int bits) {
+		this(palette, bits, null, null);
+	}
+
+	public BucketPalette(IIndexedPalette palette) {
+		this(palette, DEFAULT_BITS);
+	}
+
+	@Override
+	public int getNearestColor(final int r1, final int g1, final int b1) {
+		return _colors[getBucketIndex((r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb))];
+	}
+
+	@Override
+	public int getColorCount() {
+		return _palette.getColorCount();
+	}
+
+	@Override
+	public int[] getColors() {
+		return _colors;
+	}
+
+	public int getIndex(final int color) {
+		return getBucketIndex(((color & 0xff) >> _step) | ((((color >> 8)  & 0xff) >> _step) << _gsb) | ((((color >> 16)  & 0xff) >> _step) << _bsb));
+	}
+
+	/**
+	 * @return	The number of bits stored per color channel.
+	 */
+	public int getBits() {
+		return _bits;
+	}
+
+	private int getBucketIndex(final int bucket) {
+		return _bytes != null ? _bytes[bucket] & 0xff : _shorts[bucket] & 0xffff;
+	}
+}
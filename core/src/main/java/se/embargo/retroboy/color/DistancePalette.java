@@ -6,32 +6,22 @@ import se.embargo.core.graphic.color.IIndexedPalette;
  * Returns the nearest color according to the distance metric.
  */
 public class DistancePalette implements IIndexedPalette {
-	private final IColorDistance _distance;
 	private final int[] _colors;
 	
+	/**
+	 * Searches the colors without comparing against every one of them.
+	 */
+	private final NearestColorIndex _index;
+	
 	public DistancePalette(IColorDistance distance, int[] colors) {
-		_distance = distance;
 		_colors = colors;
+		_index = NearestColorIndex.create(distance, colors);
 	}
 	
 	@Override
 	public int getNearestColor(final int r1, final int g1, final int b1) {
-		int color = 0;
-		double mindistance = Double.MAX_VALUE;
-		
-		for (int i = 0; i < _colors.length; i++) {
-			final int r2 = _colors[i] & 0xff,
-					  g2 = (_colors[i] >> 8) & 0xff,
-					  b2 = (_colors[i] >> 16) & 0xff;
-
-			final double distance = _distance.get(r1, g1, b1, r2, g2, b2);
-			if (distance < mindistance) {
-				color = _colors[i];
-				mindistance = distance;
-			}
-		}
-		
-		return color;
+		final int index = _index.getNearestIndex(r1, g1, b1);
+		return index >= 0 ? _colors[index] : 0;
 	}
 
 	@Override
@@ -0,0 +1,57 @@
+package se.embargo.retroboy.color;
+
+import java.util.Arrays;
+
+/**
+ * Finds the palette index of colors that are exactly in the palette.
+ *
+ * IIndexedPalette.getIndex() may return the index of a nearby color, e.g. a BucketPalette returns
+ * the color nearest to the corner of the bucket. Images that only contain palette colors should be
+ * indexed with this instead, which compares the exact color and ignores the alpha channel.
+ */
+public class ExactColorIndex {
+	/**
+	 * Distinct colors without alpha, in ascending order.
+	 */
+	private final int[] _colors;
+
+	/**
+	 * First palette index of each color.
+	 */
+	private final int[] _indices;
+
+	/**
+	 * @param colors	Palette colors in ABGR (Alpha, Blue, Green, Red)
+	 */
+	public ExactColorIndex(int[] colors) {
+		// Sort by color and then index, so the first entry of each color has its lowest index
+		final long[] keys = new long[colors.length];
+		for (int i = 0; i < colors.length; i++) {
+			keys[i] = ((long)(colors[i] & 0xffffff) << 32) | i;
+		}
+
+		Arrays.sort(keys);
+		int count = 0;
+		final int[] sorted = new int[keys.length], indices = new int[keys.length];
+
+		for (int i = 0; i < keys.length; i++) {
+			final int color = (int)(keys[i] >> 32);
+			if (count == 0 || sorted[count - 1] != color) {
+				sorted[count] = color;
+				indices[count] = (int)keys[i];
+				count++;
+			}
+		}
+
+		_colors = Arrays.copyOf(sorted, count);
+		_indices = Arrays.copyOf(indices, count);
+	}
+
+	/**
+	 * @return	The first palette index of the color, or -1 if it's not in the palette.
+	 */
+	public int getIndex(final int color) {
+		final int i = Arrays.binarySearch(_colors, color & 0xffffff);
+		return i >= 0 ? _indices[i] : -1;
+	}
+}
@@ -0,0 +1,343 @@
+package se.embargo.retroboy.color;
+
+import java.util.Arrays;
+
+/**
+ * Finds the nearest palette color without comparing against every entry.
+ *
+ * The palette is sorted by luma and searched outwards from the luma of the wanted color. The
+ * squared distance of each metric is bounded from below by the squared luma difference times a
+ * constant, so the search stops as soon as the closest unvisited entry can't beat the best match.
+ * The known metrics are ranked by their squared distance and have their own search loop, so the
+ * distance calculation is inlined. Ties are resolved to the lowest palette index, which gives the
+ * same result as a linear scan.
+ *
+ * The arrays are allocated for a maximum number of colors, so an index can be updated with new
+ * colors without allocating. Lookups must not overlap an update.
+ */
+public abstract class NearestColorIndex {
+	/**
+	 * Safety margin for rounding errors in the lower bound.
+	 */
+	private static final double BOUND_MARGIN = 1 - 1e-9;
+
+	/**
+	 * Sort keys of the entries, the luma in the high and the palette index in the low bits.
+	 */
+	private final long[] _keys;
+
+	/**
+	 * Palette index of each entry, in order of luma.
+	 */
+	protected final int[] _order;
+
+	/**
+	 * Luma and color channels of each entry, in order of luma.
+	 */
+	protected final int[] _luma, _r, _g, _b;
+
+	/**
+	 * Factor that turns a squared luma difference into a lower bound of the squared distance.
+	 */
+	protected final double _bound;
+
+	/**
+	 * Number of entries in use.
+	 */
+	protected int _count = 0;
+
+	/**
+	 * @param capacity	Maximum number of colors
+	 * @param wr		Smallest weight of the squared red difference
+	 * @param wg		Smallest weight of the squared green difference
+	 * @param wb		Smallest weight of the squared blue difference
+	 * @param wl		Weight of the squared luma difference, in addition to the channel weights
+	 */
+	protected NearestColorIndex(int capacity, double wr, double wg, double wb, double wl) {
+		_keys = new long[capacity];
+		_order = new int[capacity];
+		_luma = new int[capacity];
+		_r = new int[capacity];
+		_g = new int[capacity];
+		_b = new int[capacity];
+
+		// By Cauchy-Schwarz (p.d)^2 <= (sum p^2/w) * (sum w*d^2) for the luma weights p
+		_bound = (1d / (299d * 299d / wr + 587d * 587d / wg + 114d * 114d / wb) + wl) * BOUND_MARGIN;
+	}
+
+	/**
+	 * Replaces the colors of the index.
+	 * @param colors	Palette colors
+	 * @param indices	Palette indices of the colors to search, or null to search every color
+	 * @param count		Number of colors to search
+	 */
+	public void update(int[] colors, int[] indices, int count) {
+		if (count > _keys.length) {
+			throw new IllegalArgumentException("Index only supports up to " + _keys.length + " colors");
+		}
+
+		final long[] keys = _keys;
+		for (int i = 0; i < count; i++) {
+			final int index = indices != null ? indices[i] : i, color = colors[index];
+			keys[i] = ((long)getLuma(color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff) << 32) | index;
+		}
+
+		Arrays.sort(keys, 0, count);
+		for (int i = 0; i < count; i++) {
+			final int index = (int)keys[i], color = colors[index];
+			_order[i] = index;
+			_luma[i] = (int)(keys[i] >> 32);
+			_r[i] = color & 0xff;
+			_g[i] = (color >> 8) & 0xff;
+			_b[i] = (color >> 16) & 0xff;
+		}
+
+		_count = count;
+	}
+
+	/**
+	 * @return	The index of the nearest color, or -1 if the palette is empty.
+	 */
+	public abstract int getNearestIndex(int r, int g, int b);
+
+	/**
+	 * @return	The distance between two colors as ranked by the index, e.g. without the square root.
+	 */
+	public abstract double getDistance(int r1, int g1, int b1, int r2, int g2, int b2);
+
+	/**
+	 * @return	An index of the given colors for the given metric.
+	 */
+	public static NearestColorIndex create(IColorDistance distance, int[] colors) {
+		NearestColorIndex index = create(distance, colors.length);
+		index.update(colors, null, colors.length);
+		return index;
+	}
+
+	/**
+	 * @param capacity	Maximum number of colors
+	 * @return			An empty index for the given metric.
+	 */
+	public static NearestColorIndex create(IColorDistance distance, int capacity) {
+		if (distance == Distances.YUV) {
+			return new YuvIndex(capacity);
+		}
+
+		if (distance == Distances.LUV) {
+			return new LuvIndex(capacity);
+		}
+
+		if (distance == Distances.LUMINANCE) {
+			return new LuminanceIndex(capacity);
+		}
+
+		return new LinearIndex(distance, capacity);
+	}
+
+	protected static int getLuma(int r, int g, int b) {
+		return 299 * r + 587 * g + 114 * b;
+	}
+
+	/**
+	 * @return	The position of the first entry with a luma of at least the given one.
+	 */
+	protected final int search(int luma) {
+		int lo = 0, hi = _count;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (_luma[mid] < luma) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+
+		return lo;
+	}
+
+	/**
+	 * Distance in the YUV space, ranked without the square root.
+	 * @see	Distances#YUV
+	 */
+	private static final class YuvIndex extends NearestColorIndex {
+		public YuvIndex(int capacity) {
+			super(capacity, 3, 4, 2, 0);
+		}
+
+		@Override
+		public int getNearestIndex(final int r1, final int g1, final int b1) {
+			final int luma = getLuma(r1, g1, b1), count = _count;
+			int hi = search(luma), lo = hi - 1, result = -1;
+			double mindistance = Double.MAX_VALUE;
+
+			while (lo >= 0 || hi < count) {
+				// Visit the entry closest in luma first, once it's too far away so is every other entry
+				final int i = (hi >= count || (lo >= 0 && luma - _luma[lo] <= _luma[hi] - luma)) ? lo-- : hi++;
+				final double dl = _luma[i] - luma;
+				if (dl * dl * _bound > mindistance) {
+					break;
+				}
+
+				final double distance = getDistance(r1, g1, b1, _r[i], _g[i], _b[i]);
+				final int index = _order[i];
+
+				if (distance < mindistance || (distance == mindistance && index < result)) {
+					mindistance = distance;
+					result = index;
+				}
+			}
+
+			return result;
+		}
+
+		@Override
+		public double getDistance(int r1, int g1, int b1, int r2, int g2, int b2) {
+			final double dr = r1 - r2,
+						 dg = g1 - g2,
+						 db = b1 - b2;
+			return 3d * dr * dr + 4d * dg * dg + 2d * db * db;
+		}
+	}
+
+	/**
+	 * Distance in the LUV space, ranked without the square root.
+	 * @see	Distances#LUV
+	 */
+	private static final class LuvIndex extends NearestColorIndex {
+		public LuvIndex(int capacity) {
+			super(capacity, 2, 4, 2, 0);
+		}
+
+		@Override
+		public int getNearestIndex(final int r1, final int g1, final int b1) {
+			final int luma = getLuma(r1, g1, b1), count = _count;
+			int hi = search(luma), lo = hi - 1, result = -1;
+			double mindistance = Double.MAX_VALUE;
+
+			while (lo >= 0 || hi < count) {
+				// Visit the entry closest in luma first, once it's too far away so is every other entry
+				final int i = (hi >= count || (lo >= 0 && luma - _luma[lo] <= _luma[hi] - luma)) ? lo-- : hi++;
+				final double dl = _luma[i] - luma;
+				if (dl * dl * _bound > mindistance) {
+					break;
+				}
+
+				final double distance = getDistance(r1, g1, b1, _r[i], _g[i], _b[i]);
+				final int index = _order[i];
+
+				if (distance < mindistance || (distance == mindistance && index < result)) {
+					mindistance = distance;
+					result = index;
+				}
+			}
+
+			return result;
+		}
+
+		@Override
+		public double getDistance(int r1, int g1, int b1, int r2, int g2, int b2) {
+			final double mr = ((double)(r1 + r2)) / 2;
+			final double dr = r1 - r2,
+						 dg = g1 - g2,
+						 db = b1 - b2;
+			return (2d + mr / 256d) * dr * dr + 4d * dg * dg + (2d + (255d - mr) / 256d) * db * db;
+		}
+	}
+
+	/**
+	 * Distance in the psychovisual model.
+	 * @see	Distances#LUMINANCE
+	 */
+	private static final class LuminanceIndex extends NearestColorIndex {
+		/**
+		 * Relative luminance of each entry, in order of luma.
+		 */
+		private final double[] _l;
+
+		public LuminanceIndex(int capacity) {
+			super(capacity, 0.299d * 0.75d, 0.587d * 0.75d, 0.114d * 0.75d, 1d / (255000d * 255000d));
+			_l = new double[capacity];
+		}
+
+		@Override
+		public void update(int[] colors, int[] indices, int count) {
+			super.update(colors, indices, count);
+
+			for (int i = 0; i < count; i++) {
+				_l[i] = ((double)(_r[i] * 299 + _g[i] * 587 + _b[i] * 114)) / 255000d;
+			}
+		}
+
+		@Override
+		public int getNearestIndex(final int r1, final int g1, final int b1) {
+			final int luma = getLuma(r1, g1, b1), count = _count;
+			final double l1 = ((double)(r1 * 299 + g1 * 587 + b1 * 114)) / 255000d;
+			int hi = search(luma), lo = hi - 1, result = -1;
+			double mindistance = Double.MAX_VALUE;
+
+			while (lo >= 0 || hi < count) {
+				// Visit the entry closest in luma first, once it's too far away so is every other entry
+				final int i = (hi >= count || (lo >= 0 && luma - _luma[lo] <= _luma[hi] - luma)) ? lo-- : hi++;
+				final double dluma = _luma[i] - luma;
+				if (dluma * dluma * _bound > mindistance) {
+					break;
+				}
+
+				final double dl = l1 - _l[i];
+				final double dr = r1 - _r[i],
+							 dg = g1 - _g[i],
+							 db = b1 - _b[i];
+				final double distance = (dr * dr * 0.299d + dg * dg * 0.587d + db * db * 0.114d) * 0.75d + dl * dl;
+				final int index = _order[i];
+
+				if (distance < mindistance || (distance == mindistance && index < result)) {
+					mindistance = distance;
+					result = index;
+				}
+			}
+
+			return result;
+		}
+
+		@Override
+		public double getDistance(int r1, int g1, int b1, int r2, int g2, int b2) {
+			return Distances.LUMINANCE.get(r1, g1, b1, r2, g2, b2);
+		}
+	}
+
+	/**
+	 * Compares against every entry, for metrics without a known lower bound.
+	 */
+	private static final class LinearIndex extends NearestColorIndex {
+		private final IColorDistance _distance;
+
+		public LinearIndex(IColorDistance distance, int capacity) {
+			super(capacity, 1, 1, 1, 0);
+			_distance = distance;
+		}
+
+		@Override
+		public int getNearestIndex(final int r1, final int g1, final int b1) {
+			int result = -1;
+			double mindistance = Double.MAX_VALUE;
+
+			for (int i = 0, count = _count; i < count; i++) {
+				final double distance = _distance.get(r1, g1, b1, _r[i], _g[i], _b[i]);
+				final int index = _order[i];
+
+				if (distance < mindistance || (distance == mindistance && index < result)) {
+					mindistance = distance;
+					result = index;
+				}
+			}
+
+			return result;
+		}
+
+		@Override
+		public double getDistance(int r1, int g1, int b1, int r2, int g2, int b2) {
+			return _distance.get(r1, g1, b1, r2, g2, b2);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package se.embargo.retroboy.filter;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.cache.ICacheStorage;
+import se.embargo.retroboy.cache.TableFile;
+import se.embargo.retroboy.color.BucketPalette;
+import se.embargo.retroboy.color.DistancePalette;
+import se.embargo.retroboy.color.IColorDistance;
+
+public abstract class AbstractColorFilter extends AbstractFilter implements IRowFilter {
+	private static final Logger LOG = Logger.getLogger(AbstractColorFilter.class.getName());
+	
+	/**
+	 * Number of most significant bits to store per color channel.
+	 */
+	private static final int _bits = 4;
+	
+	/**
+	 * Number of bits to shift a color.
+	 */
+	protected static final int _step = 8 - _bits;
+	
+	/**
+	 * Color bucket entries.
+	 */
+	protected final int[] _buckets;
+	
+	/**
+	 * Latch to guard bucket initialization.
+	 */
+	private final CountDownLatch _init = new CountDownLatch(1);
+	
+	/**
+	 * Bitmap of initialized buckets, used while the buckets are filled lazily.
+	 */
+	private final AtomicIntegerArray _ready;
+	
+	/**
+	 * True when all buckets are initialized.
+	 */
+	private volatile boolean _complete = false;
+	
+	/**
+	 * Number of bits to shift green and blue colors. 
+	 */
+	protected final int _gsb = _bits, 
+					  _bsb = _bits * 2;
+	
+	/**
+	 * Red, green and blue bit masks.
+	 */
+	private final int _rm = (1 << _bits) - 1, 
+					  _gm = _rm << _gsb, 
+					  _bm = _rm << _bsb;
+
+	/**
+	 * Name of filter.
+	 */
+	private final String _filtername;
+
+	/**
+	 * Storage for cached mixing plans.
+	 */
+	private final ICacheStorage _storage;
+	
+	/**
+	 * Executor that fills the uncached mixing plans in the background while buckets are 
+	 * initialized on demand, or null to build them all on the calling thread.
+	 */
+	private final Executor _executor;
+	
+	/**
+	 * Palette instance. Its getIndex() only approximates the index of colors that share a bucket 
+	 * with a nearer color, so exact palette colors must be indexed through ExactColorIndex.
+	 */
+	private final IPalette _palette;
+	
+	/**
+	 * Colors in palette.
+	 */
+	protected final int[] _colors;
+	
+	/**
+	 * Number of ints per bucket.
+	 */
+	private final int _bucketSize;
+	
+	/**
+	 * Version of cache file.
+	 */
+	private final int _version;
+	
+	/**
+	 * Function to measure the distance between colors.
+	 */
+	protected final IColorDistance _distance;
+	
+    public AbstractColorFilter(String filtername, ICacheStorage storage, Executor executor, IColorDistance distance, int[] colors, int bucketSize, int version) {
+		_filtername = filtername;
+    	_storage = storage;
+    	_executor = executor;
+		_distance = distance;
+		_palette = new BucketPalette(new DistancePalette(distance, colors), BucketPalette.DEFAULT_BITS, storage, distance.toString());
+		_colors = colors;
+		_bucketSize = bucketSize;
+		_version = version;
+		_buckets = new int[(1 << (_bits * 3)) * bucketSize];
+		_ready = new AtomicIntegerArray(((1 << (_bits * 3)) + 31) / 32);
+	}
+
+    /**
+     * Apply this filter to a frame.
+     * @param buffer	Frame to process
+     */
+    protected abstract void process(ImageBuffer buffer);
+    
+    /**
+     * Apply this filter to a range of rows.
+     * @param buffer	Frame to process
+     * @param first		First row to process
+     * @param last		Last row to process (exclusive)
+     */
+    protected abstract void process(ImageBuffer buffer, int first, int last);
+    
+    /**
+     * Initialize a bucket.
+     * @param buckets	Table to write the bucket to.
+     * @param bucket	Offset of bucket.
+     * @param r			Red value to select a color for.
+     * @param g			Green value to select a color for.
+     * @param b			Blue value to select a color for.
+     */
+    protected abstract void initBucket(final int[] buckets, final int bucket, final int r, final int g, final int b);
+    
+    /**
+     * @return	True if all buckets are initialized and ensureBucket() needn't be called.
+     */
+    protected final boolean isReady() {
+    	return _complete;
+    }
+    
+    /**
+     * Initializes a bucket unless it's already been initialized.
+     * @param index	Index of bucket.
+     * @return		The index of the bucket.
+     */
+    protected final int ensureBucket(final int index) {
+    	final int word = index >> 5, bit = 1 << (index & 31);
+    	if ((_ready.get(word) & bit) != 0) {
+    		return index;
+    	}
+    	
+    	// Threads may race to initialize the same bucket, but they'll all produce the same 
+    	// result and readers only see the bucket after it's been completely written
+    	final int[] bucket = new int[_bucketSize];
+    	initBucket(bucket, 0, (index & _rm) << _step, ((index & _gm) >> _gsb) << _step, ((index & _bm) >> _bsb) << _step);
+    	System.arraycopy(bucket, 0, _buckets, index * _bucketSize, _bucketSize);
+    	
+    	// Publish the bucket
+    	int value;
+    	do {
+    		value = _ready.get(word);
+    	}
+    	while (!_ready.compareAndSet(word, value, value | bit));
+    	
+    	return index;
+    }
+    
+    /**
+     * Initialize the buckets.
+     * @remark	This must be done after the child class is done initializing since virtual methods are called.
+     */
+    protected void init() {
+    	long ts = System.nanoTime();
+		
+		// Check for cached mixing plans
+		int hash = 0;
+		for (int color : _colors) {
+			hash ^= color;
+		}
+		
+		// Read cached mixing plan, missing, outdated or corrupt files are rebuilt
+		String filename = _filtername + _distance + "-" + Integer.toHexString(hash) + ".bin";
+		if (TableFile.read(_storage, filename, _version, _buckets)) {
+			LOG.info("Cached init: " + (((double)System.nanoTime() - (double)ts) / 1000000000d) + "s");
+			_complete = true;
+			_init.countDown();
+			return;
+		}
+		
+		// Initialize buckets as they're used and fill in the rest in the background
+		if (_executor != null) {
+			final String cachename = filename;
+			_init.countDown();
+			_executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					fill(cachename);
+				}
+			});
+		}
+		else {
+			init(filename);
+		}
+    }
+    
+    @Override
+    public boolean isColorFilter() {
+    	return true;
+    }
+    
+    @Override
+    public IPalette getPalette() {
+    	return _palette;
+    }
+    
+	@Override
+	public final void accept(ImageBuffer buffer) {
+		await();
+    	process(buffer);
+	}
+    
+	@Override
+	public final void accept(ImageBuffer buffer, int first, int last) {
+		await();
+		process(buffer, first, last);
+	}
+	
+	private void await() {
+    	try {
+			_init.await();
+		}
+		catch (InterruptedException e) {}
+	}
+    
+    private void init(String filename) {
+    	long ts = System.nanoTime();
+		
+		// Calculate mixing plans
+		Parallel.forRange(new IForBody<int[]>() {
+			@Override
+			public void run(int[] item, int it, int last) {
+				for (int i = it; i < last; i++) {
+					final int r = (i & _rm) << _step,
+						  	  g = ((i & _gm) >> _gsb) << _step,
+						  	  b = ((i & _bm) >> _bsb) << _step;
+				
+					initBucket(_buckets, i * _bucketSize, r, g, b);
+				}
+			}
+		}, _buckets, 0, _buckets.length / _bucketSize);
+
+		_complete = true;
+		write(filename);
+		LOG.info("Full init: " + (((double)System.nanoTime() - (double)ts) / 1000000000d) + "s");
+		_init.countDown();
+    }
+    
+    private void fill(String filename) {
+    	long ts = System.nanoTime();
+    	
+    	// Initialize the buckets that haven't been used yet
+    	for (int i = 0, count = _buckets.length / _bucketSize; i < count; i++) {
+    		ensureBucket(i);
+    	}
+    	
+    	_complete = true;
+    	write(filename);
+		LOG.info("Background init: " + (((double)System.nanoTime() - (double)ts) / 1000000000d) + "s");
+    }
+    
+    private void write(String filename) {
+		// Write mixing plans to cache
+		try {
+			TableFile.write(_storage, filename, _version, _buckets);
+		}
+		catch (IOException e) {
+			LOG.warning("Failed to write " + filename + ": " + e);
+		}
+    }
+}
@@ -0,0 +1,191 @@
+package se.embargo.retroboy.filter;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.color.BucketPalette;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.DistancePalette;
+import se.embargo.retroboy.color.Palettes;
+
+/**
+ * Atkinson error diffusion, optionally processing rows in parallel as a diagonal wavefront.
+ *
+ * A pixel receives error from the two pixels to its left, from three pixels on the row above
+ * and from one pixel two rows up. A row can thus be processed up to column x as soon as the
+ * row above has been processed up to column x + LAG, which gives the same result as a
+ * single pass over the image.
+ */
+public class AtkinsonFilter extends AbstractFilter {
+	/**
+	 * Number of columns a row lags behind the row above. The row above must have diffused
+	 * its error into the next two pixels that a row writes to before these can be touched.
+	 */
+	private static final int LAG = 4;
+
+	/**
+	 * Number of pixels processed between each progress update.
+	 */
+	private static final int STEP = 64;
+
+	private static class FilterItem {
+		public ImageBuffer buffer;
+
+		/**
+		 * Next row to be claimed by a worker.
+		 */
+		public final AtomicInteger row = new AtomicInteger();
+
+		/**
+		 * Number of pixels processed on each row.
+		 */
+		public final AtomicIntegerArray progress;
+
+		public FilterItem(int height) {
+			progress = new AtomicIntegerArray(height);
+		}
+	}
+
+	private final IPalette _palette = new BucketPalette(new DistancePalette(Distances.YUV, Palettes.BINARY));
+	private final Queue<FilterItem> _bufferpool = new ArrayBlockingQueue<FilterItem>(4);
+	private final FilterBody _body = new FilterBody();
+	private final boolean _parallel;
+
+	/**
+	 * @param parallel	Process rows in parallel as a wavefront
+	 */
+	public AtkinsonFilter(boolean parallel) {
+		_parallel = parallel;
+	}
+
+	public AtkinsonFilter() {
+		this(Parallel.getNumberOfCores() > 1);
+	}
+
+	@Override
+	public IPalette getPalette() {
+		return _palette;
+	}
+
+	@Override
+	public void accept(ImageBuffer buffer) {
+		final int width = buffer.imagewidth,
+				  height = buffer.imageheight;
+
+		if (!_parallel || height < 2) {
+			final int[] image = buffer.image.array();
+			for (int y = 0; y < height; y++) {
+				diffuse(image, width, buffer.threshold, y, 0, width);
+			}
+
+			return;
+		}
+
+		FilterItem item = _bufferpool.poll();
+		if (item == null || item.progress.length() != height) {
+			item = new FilterItem(height);
+		}
+
+		item.buffer = buffer;
+		item.row.set(0);
+		for (int i = 0; i < height; i++) {
+			item.progress.set(i, 0);
+		}
+
+		// Each worker claims rows in order until the image is done
+		final int workers = Math.min(Parallel.getNumberOfCores(), height);
+		Parallel.forRange(_body, item, 0, workers, 1);
+
+		// Release work item back to pool
+		item.buffer = null;
+		_bufferpool.offer(item);
+	}
+
+	/**
+	 * Dithers part of a row and propagates the error to the unprocessed pixels.
+	 * @param image		Image to dither, with at least two extra rows at the end
+	 * @param width		Width of image
+	 * @param threshold	Luminance threshold
+	 * @param y			Row to process
+	 * @param first		First column to process
+	 * @param last		Column after the last one to process
+	 */
+	private static void diffuse(final int[] image, final int width, final int threshold, final int y, final int first, final int last) {
+		final int yi = y * width;
+
+		for (int x = first; x < last; x++) {
+			final int i = x + yi;
+			final int pixel = image[i];
+			final int mono = pixel & 0xff;
+
+			// Apply the threshold
+			final int lum = mono < threshold ? 0 : 255;
+
+			// Output the pixel
+			image[i] = (pixel & 0xff000000) | (lum << 16) | (lum << 8) | lum;
+
+			// Propagate the error, no need to check the bottom bound since the buffer has 2+ extra lines
+			final int err = (mono - lum) / 8;
+			if (err != 0) {
+				if (x + 1 < width) {
+					propagate(image, i + 1, err);
+
+					if (x + 2 < width) {
+						propagate(image, i + 2, err);
+					}
+				}
+
+				if (x > 0) {
+					propagate(image, i - 1 + width, err);
+				}
+
+				propagate(image, i + width, err);
+
+				if (x + 1 < width) {
+					propagate(image, i + 1 + width, err);
+				}
+
+				propagate(image, i + width + width, err);
+			}
+		}
+	}
+
+	private static void propagate(final int[] image, final int i, final int err) {
+		final int pixel = image[i];
+		image[i] = (pixel & 0xff000000) | Math.min(Math.max(0, (pixel & 0xff) + err), 255);
+	}
+
+	private static class FilterBody implements IForBody<FilterItem> {
+		@Override
+		public void run(FilterItem item, int it, int last) {
+			final int[] image = item.buffer.image.array();
+			final int width = item.buffer.imagewidth,
+					  height = item.buffer.imageheight,
+					  threshold = item.buffer.threshold;
+			final AtomicIntegerArray progress = item.progress;
+
+			for (int y = item.row.getAndIncrement(); y < height; y = item.row.getAndIncrement()) {
+				for (int x = 0; x < width; ) {
+					final int end = Math.min(x + STEP, width);
+
+					// Wait for the row above to get far enough ahead
+					if (y > 0) {
+						final int required = Math.min(end - 1 + LAG, width);
+						while (progress.get(y - 1) < required) {
+							Thread.yield();
+						}
+					}
+
+					diffuse(image, width, threshold, y, x, end);
+					progress.set(y, end);
+					x = end;
+				}
+			}
+		}
+	}
+}
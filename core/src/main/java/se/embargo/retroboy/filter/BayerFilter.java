@@ -0,0 +1,259 @@
+package se.embargo.retroboy.filter;
+
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.color.IPaletteSink;
+import se.embargo.retroboy.graphic.DitherMatrix;
+
+public class BayerFilter extends AbstractFilter implements IRowFilter, IPaletteSink {
+	/**
+	 * Type of palette to apply.
+	 */
+	public enum PaletteType { 
+		/**
+		 * A color palette is being used.
+		 */
+		Color, 
+		
+		/**
+		 * A monochrome palette is used.
+		 */
+		Monochrome, 
+		
+		/**
+		 * Monochrome palette with lighting compensation (e.g. Otsu threshold).
+		 */
+		Threshold
+	}
+	
+	/**
+	 * Current color palette.
+	 */
+	private volatile IPalette _palette;
+
+	/**
+	 * Dither matrix thresholds.
+	 */
+	private final int[] _matrix;
+	
+	/**
+	 * Mask and shift that wrap coordinates into the matrix.
+	 */
+	private final int _mask, _shift;
+
+	/**
+	 * Thresholds of each row tiled for the unrolled loops, or null for large matrices.
+	 */
+	private final int[] _tiled;
+
+	/**
+	 * Number of threshold levels.
+	 */
+	private final int _levels;
+
+	/**
+	 * Ratio of color mixing.
+	 */
+	private final int _mixingratio;
+	
+	/**
+	 * Maps a channel plus a threshold to the clamped channel with the mixing ratio subtracted.
+	 */
+	private final int[] _clamp;
+	
+	private final IForBody<ImageBuffer> _body;
+	
+	public BayerFilter(IPalette palette, DitherMatrix matrix, PaletteType type) {
+		_palette = palette;
+		_matrix = matrix.thresholds;
+		_mask = matrix.mask;
+		_shift = matrix.shift;
+		_tiled = matrix.tiled;
+		_levels = matrix.levels;
+		_mixingratio = matrix.levels / 2;
+		
+		_clamp = new int[256 + _levels];
+		for (int i = 0; i < _clamp.length; i++) {
+			_clamp[i] = Math.max(0, Math.min(i - _mixingratio, 255));
+		}
+		
+		switch (type) {
+			case Color:
+				_body = new ColorBody();
+				break;
+				
+			case Threshold:
+				_body = new ThresholdBody();
+				break;
+				
+			default:
+				_body = new MonochromeBody();
+				break;
+		}
+	}
+	
+	@Override
+	public void accept(IPalette palette) {
+		_palette = palette;
+	}
+    
+    @Override
+    public boolean isColorFilter() {
+    	return _body instanceof ColorBody;
+    }
+
+    @Override
+    public IPalette getPalette() {
+		return _palette;
+	}
+	
+    @Override
+	public void accept(ImageBuffer buffer) {
+		Parallel.forRange(_body, buffer, 0, buffer.imageheight);
+	}
+    
+    @Override
+	public void accept(ImageBuffer buffer, int first, int last) {
+		_body.run(buffer, first, last);
+	}
+    
+    private class ColorBody implements IForBody<ImageBuffer> {
+		@Override
+		public void run(ImageBuffer buffer, int it, int last) {
+	    	final IPalette palette = _palette;
+			final int[] image = buffer.image.array();
+			final int width = buffer.imagewidth;
+			
+			for (int y = it; y < last; y++) {
+				final int yi = y * width,
+						  yt = (y & _mask) << _shift;
+				int x = 0;
+				
+				// Keep a row of thresholds in registers when the matrix is small
+				if (_tiled != null) {
+					final int tt = (y & _mask) * DitherMatrix.UNROLL;
+					final int t0 = _tiled[tt], t1 = _tiled[tt + 1], t2 = _tiled[tt + 2], t3 = _tiled[tt + 3],
+							  t4 = _tiled[tt + 4], t5 = _tiled[tt + 5], t6 = _tiled[tt + 6], t7 = _tiled[tt + 7];
+					
+					for (; x + DitherMatrix.UNROLL <= width; x += DitherMatrix.UNROLL) {
+						final int i = x + yi;
+						image[i] = dither(palette, image[i], t0);
+						image[i + 1] = dither(palette, image[i + 1], t1);
+						image[i + 2] = dither(palette, image[i + 2], t2);
+						image[i + 3] = dither(palette, image[i + 3], t3);
+						image[i + 4] = dither(palette, image[i + 4], t4);
+						image[i + 5] = dither(palette, image[i + 5], t5);
+						image[i + 6] = dither(palette, image[i + 6], t6);
+						image[i + 7] = dither(palette, image[i + 7], t7);
+					}
+				}
+				
+				for (; x < width; x++) {
+					final int i = x + yi;
+					image[i] = dither(palette, image[i], _matrix[(x & _mask) + yt]);
+				}
+			}
+		}
+		
+		private int dither(final IPalette palette, final int pixel, final int threshold) {
+			final int r1 = _clamp[(pixel & 0x000000ff) + threshold];
+			final int g1 = _clamp[((pixel & 0x0000ff00) >> 8) + threshold];
+			final int b1 = _clamp[((pixel & 0x00ff0000) >> 16) + threshold];
+			
+			// Output the pixel, but keep alpha channel intact
+			return (pixel & 0xff000000) | (palette.getNearestColor(r1, g1, b1) & 0xffffff);
+		}
+    }
+
+    /**
+     * Dithers the luminance through a table indexed by luminance plus threshold.
+     */
+    private static void dither(final int[] image, final int width, final int y, final int[] matrix, final int mask, final int shift, 
+    						   final int[] tiled, final int[] colors, final int offset) {
+		final int yi = y * width,
+				  yt = (y & mask) << shift;
+		int x = 0;
+		
+		// Keep a row of thresholds in registers when the matrix is small
+		if (tiled != null) {
+			final int tt = (y & mask) * DitherMatrix.UNROLL;
+			final int t0 = tiled[tt] + offset, t1 = tiled[tt + 1] + offset, t2 = tiled[tt + 2] + offset, t3 = tiled[tt + 3] + offset,
+					  t4 = tiled[tt + 4] + offset, t5 = tiled[tt + 5] + offset, t6 = tiled[tt + 6] + offset, t7 = tiled[tt + 7] + offset;
+			
+			for (; x + DitherMatrix.UNROLL <= width; x += DitherMatrix.UNROLL) {
+				final int i = x + yi;
+				image[i] = (image[i] & 0xff000000) | colors[(image[i] & 0xff) + t0];
+				image[i + 1] = (image[i + 1] & 0xff000000) | colors[(image[i + 1] & 0xff) + t1];
+				image[i + 2] = (image[i + 2] & 0xff000000) | colors[(image[i + 2] & 0xff) + t2];
+				image[i + 3] = (image[i + 3] & 0xff000000) | colors[(image[i + 3] & 0xff) + t3];
+				image[i + 4] = (image[i + 4] & 0xff000000) | colors[(image[i + 4] & 0xff) + t4];
+				image[i + 5] = (image[i + 5] & 0xff000000) | colors[(image[i + 5] & 0xff) + t5];
+				image[i + 6] = (image[i + 6] & 0xff000000) | colors[(image[i + 6] & 0xff) + t6];
+				image[i + 7] = (image[i + 7] & 0xff000000) | colors[(image[i + 7] & 0xff) + t7];
+			}
+		}
+		
+		for (; x < width; x++) {
+			final int i = x + yi;
+			image[i] = (image[i] & 0xff000000) | colors[(image[i] & 0xff) + matrix[(x & mask) + yt] + offset];
+		}
+    }
+
+    private class MonochromeBody implements IForBody<ImageBuffer> {
+    	/**
+    	 * Output color of each luminance plus threshold.
+    	 */
+    	private final int[] _colors = new int[256 + _levels];
+
+    	public MonochromeBody() {
+			for (int i = 0; i < _colors.length; i++) {
+				final int lum = _clamp[i];
+				_colors[i] = (_palette.getNearestColor(lum, lum, lum) & 0xffffff);
+			}
+		}
+
+		@Override
+		public void run(ImageBuffer buffer, int it, int last) {
+	    	final int[] image = buffer.image.array();
+			final int width = buffer.imagewidth;
+			
+			for (int y = it; y < last; y++) {
+				dither(image, width, y, _matrix, _mask, _shift, _tiled, _colors, 0);
+			}
+		}
+    }
+
+    private class ThresholdBody implements IForBody<ImageBuffer> {
+    	/**
+    	 * Output color of each luminance plus threshold plus lighting offset, starting at the minimum offset.
+    	 */
+    	private final int[] _colors;
+    	private final int _minoffset, _maxoffset;
+
+    	public ThresholdBody() {
+			int lightingstep = 256 / _palette.getColorCount();
+			_minoffset = Math.min(_mixingratio - lightingstep, 0);
+			_maxoffset = Math.max(lightingstep - _mixingratio, 0);
+			
+			_colors = new int[256 + _levels + _maxoffset - _minoffset];
+			for (int i = 0; i < _colors.length; i++) {
+				final int lum = Math.max(0, Math.min(i + _minoffset - _mixingratio, 255));
+				_colors[i] = (_palette.getNearestColor(lum, lum, lum) & 0xffffff);
+			}
+		}
+
+		@Override
+		public void run(ImageBuffer buffer, int it, int last) {
+	    	final int[] image = buffer.image.array();
+			final int width = buffer.imagewidth;
+			
+			// Offset used to compensate for too dark or bright images
+			final int offset = Math.max(_minoffset, Math.min(128 - buffer.threshold, _maxoffset));
+			
+			for (int y = it; y < last; y++) {
+				dither(image, width, y, _matrix, _mask, _shift, _tiled, _colors, offset - _minoffset);
+			}
+		}
+    }
+}
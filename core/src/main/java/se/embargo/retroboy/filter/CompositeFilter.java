@@ -0,0 +1,115 @@
+package se.embargo.retroboy.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import se.embargo.core.graphic.color.IPalette;
+
+public class CompositeFilter extends AbstractFilter {
+	private List<IImageFilter> _filters = new ArrayList<IImageFilter>();
+	private List<IImageFilter> _stages = _filters;
+	
+	/**
+	 * Fuse YUV decoding with a following row filter into a single pass.
+	 */
+	private boolean _fused = false;
+	
+	public void add(IImageFilter filter) {
+		_filters.add(filter);
+		initStages();
+	}
+	
+	/**
+	 * Enables running a YuvFilter and an ordered dither filter following it in one 
+	 * pass over the image. This avoids writing and re-reading the decoded image, but 
+	 * threshold based filters will see the Otsu threshold of the previous frame.
+	 * @param fused	True to fuse supported filter pairs
+	 */
+	public void setFused(boolean fused) {
+		_fused = fused;
+		initStages();
+	}
+	
+	/**
+	 * @return	The filters in the order they're applied, each one may run on a separate pipeline stage.
+	 */
+	public List<IImageFilter> getStages() {
+		return Collections.unmodifiableList(_stages);
+	}
+	
+	private void initStages() {
+		if (!_fused) {
+			_stages = _filters;
+			return;
+		}
+		
+		List<IImageFilter> stages = new ArrayList<IImageFilter>();
+		for (int i = 0; i < _filters.size(); i++) {
+			IImageFilter filter = _filters.get(i);
+			
+			if (filter instanceof YuvFilter && i + 1 < _filters.size() && _filters.get(i + 1) instanceof IRowFilter) {
+				stages.add(new FusedFilter((YuvFilter)filter, (IRowFilter)_filters.get(++i)));
+			}
+			else {
+				stages.add(filter);
+			}
+		}
+		
+		_stages = stages;
+	}
+	
+	@Override
+	public int getEffectiveWidth(int framewidth, int frameheight) {
+		for (IImageFilter filter : _filters) {
+			int result = filter.getEffectiveWidth(framewidth, frameheight);
+			if (result > 0) {
+				return result;
+			}
+		}
+		
+		return 0;
+	}
+
+	@Override
+	public int getEffectiveHeight(int framewidth, int frameheight) {
+		for (IImageFilter filter : _filters) {
+			int result = filter.getEffectiveHeight(framewidth, frameheight);
+			if (result > 0) {
+				return result;
+			}
+		}
+		
+		return 0;
+	}
+
+	@Override
+	public boolean isColorFilter() {
+		for (IImageFilter filter : _filters) {
+			if (filter.isColorFilter()) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	@Override
+	public IPalette getPalette() {
+		for (IImageFilter filter : _filters) {
+			IPalette palette = filter.getPalette();
+			if (palette != null) {
+				return palette;
+			}
+		}
+		
+		return null;
+	}
+
+	@Override
+	public void accept(ImageBuffer buffer) {
+		for (IImageFilter filter : _stages) {
+			filter.accept(buffer);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package se.embargo.retroboy.filter;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.color.IPaletteSink;
+import se.embargo.retroboy.graphic.DiffusionKernel;
+
+/**
+ * Error diffusion against an arbitrary palette.
+ *
+ * The error of each color channel is accumulated in fixed point row buffers which only
+ * cover the rows the kernel reaches, and rows are scanned in alternating directions.
+ * Serpentine scanning makes each row depend on the whole previous row, so the image is
+ * instead split into bands of a fixed height which the cores pick up one at a time. Each
+ * band primes its error buffers by diffusing a few rows above it without writing any
+ * output. This is an approximation, the error carried into a band only comes from those
+ * rows and not from the band above, so faint seams can remain between bands. Since the
+ * bands don't depend on the number of cores, every device dithers an image the same way.
+ */
+public class ErrorDiffusionFilter extends AbstractFilter implements IPaletteSink {
+	/**
+	 * Number of fractional bits of the accumulated error.
+	 */
+	private static final int FRACTION_BITS = 12;
+	private static final int ROUNDING = 1 << (FRACTION_BITS - 1);
+
+	/**
+	 * Number of rows in each band.
+	 */
+	private static final int BAND_HEIGHT = 32;
+
+	/**
+	 * Number of rows above each band used to prime the error buffers.
+	 */
+	private static final int WARMUP_ROWS = 8;
+
+	private static class FilterItem {
+		public ImageBuffer buffer;
+
+		/**
+		 * Copy of the input rows above each band, since the band above overwrites them.
+		 */
+		public int[] warmup = new int[0];
+	}
+
+	/**
+	 * Error buffers of a band, the error of row y is stored in rows[y % rows.length].
+	 */
+	private static class ErrorRows {
+		public final int[][] rows;
+
+		public ErrorRows(int height, int length) {
+			rows = new int[height][length];
+		}
+	}
+
+	private volatile IPalette _palette;
+	private final DiffusionKernel _kernel;
+
+	/**
+	 * Kernel weights in fixed point.
+	 */
+	private final int[] _weights;
+
+	private final FilterItem _item = new FilterItem();
+	private final Queue<ErrorRows> _bufferpool = new ArrayBlockingQueue<ErrorRows>(16);
+	private final FilterBody _body = new FilterBody();
+	private final boolean _color;
+
+	/**
+	 * @param palette	Color palette in ABGR (Alpha, Blue, Green, Red)
+	 * @param kernel	Kernel used to spread the error
+	 * @param color		Request a color image from the decoder, the error is always diffused per channel
+	 */
+	public ErrorDiffusionFilter(IPalette palette, DiffusionKernel kernel, boolean color) {
+		_palette = palette;
+		_kernel = kernel;
+		_color = color;
+
+		_weights = new int[kernel.weights.length];
+		for (int i = 0; i < _weights.length; i++) {
+			_weights[i] = (int)Math.round(kernel.weights[i] * (1 << FRACTION_BITS));
+		}
+	}
+
+	/**
+	 * @param palette	Color palette in ABGR (Alpha, Blue, Green, Red)
+	 * @param kernel	Kernel used to spread the error
+	 */
+	public ErrorDiffusionFilter(IPalette palette, DiffusionKernel kernel) {
+		this(palette, kernel, true);
+	}
+
+	@Override
+	public void accept(IPalette palette) {
+		_palette = palette;
+	}
+
+	@Override
+	public boolean isColorFilter() {
+		return _color;
+	}
+
+	@Override
+	public IPalette getPalette() {
+		return _palette;
+	}
+
+	@Override
+	public synchronized void accept(ImageBuffer buffer) {
+		final int[] image = buffer.image.array();
+		final int width = buffer.imagewidth,
+				  height = buffer.imageheight;
+
+		// Split the image into bands of a fixed height
+		final int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+
+		// Save the input rows above each band before they're overwritten
+		final FilterItem item = _item;
+		final int warmuplength = WARMUP_ROWS * width;
+		if (item.warmup.length < bands * warmuplength) {
+			item.warmup = new int[bands * warmuplength];
+		}
+
+		for (int band = 1; band < bands; band++) {
+			System.arraycopy(image, (band * BAND_HEIGHT - WARMUP_ROWS) * width, item.warmup, band * warmuplength, warmuplength);
+		}
+
+		// Workers pull one band at a time
+		item.buffer = buffer;
+		Parallel.forRange(_body, item, 0, bands, 1);
+		item.buffer = null;
+	}
+
+	private class FilterBody implements IForBody<FilterItem> {
+		@Override
+		public void run(FilterItem item, int it, int last) {
+			final int length = (item.buffer.imagewidth + _kernel.reach * 2) * 3;
+
+			ErrorRows errors = _bufferpool.poll();
+			if (errors == null || errors.rows.length != _kernel.height || errors.rows[0].length != length) {
+				errors = new ErrorRows(_kernel.height, length);
+			}
+
+			for (int band = it; band < last; band++) {
+				diffuse(item, band, errors.rows);
+			}
+
+			// Release buffers back to pool
+			_bufferpool.offer(errors);
+		}
+
+		private void diffuse(FilterItem item, int band, int[][] rows) {
+			final IPalette palette = _palette;
+			final DiffusionKernel kernel = _kernel;
+			final int[] image = item.buffer.image.array(), weights = _weights;
+			final int width = item.buffer.imagewidth,
+					  reach = kernel.reach,
+					  taps = weights.length,
+					  length = (width + reach * 2) * 3;
+
+			for (int[] row : rows) {
+				Arrays.fill(row, 0);
+			}
+
+			final int[][] taprows = new int[taps][];
+			final int[] tapoffsets = new int[taps];
+
+			// Prime the error buffers using the saved rows above the band
+			final int it = band * BAND_HEIGHT,
+					  last = Math.min(it + BAND_HEIGHT, item.buffer.imageheight),
+					  first = band > 0 ? it - WARMUP_ROWS : it;
+
+			for (int y = first; y < last; y++) {
+				final boolean output = y >= it;
+				final int[] source = output ? image : item.warmup;
+				final int yi = output ? y * width : (band * WARMUP_ROWS + y - first) * width;
+
+				// Scan even rows left to right and odd rows right to left
+				final int step = (y & 1) == 0 ? 1 : -1;
+				final int[] current = rows[y % rows.length];
+
+				for (int k = 0; k < taps; k++) {
+					taprows[k] = rows[(y + kernel.dy[k]) % rows.length];
+					tapoffsets[k] = kernel.dx[k] * step * 3;
+				}
+
+				for (int n = 0, x = step > 0 ? 0 : width - 1; n < width; n++, x += step) {
+					final int i = x + yi,
+							  e = (x + reach) * 3;
+					final int pixel = source[i];
+
+					// Add the accumulated error to the pixel and clear it for reuse
+					final int r1 = Math.min(Math.max(0, (pixel & 0xff) + ((current[e] + ROUNDING) >> FRACTION_BITS)), 255),
+							  g1 = Math.min(Math.max(0, ((pixel >> 8) & 0xff) + ((current[e + 1] + ROUNDING) >> FRACTION_BITS)), 255),
+							  b1 = Math.min(Math.max(0, ((pixel >> 16) & 0xff) + ((current[e + 2] + ROUNDING) >> FRACTION_BITS)), 255);
+					current[e] = current[e + 1] = current[e + 2] = 0;
+
+					final int color = palette.getNearestColor(r1, g1, b1);
+					if (output) {
+						// Output the pixel, but keep alpha channel intact
+						image[i] = (pixel & 0xff000000) | (color & 0xffffff);
+					}
+
+					// Spread the error to the unprocessed neighbours
+					final int er = r1 - (color & 0xff),
+							  eg = g1 - ((color >> 8) & 0xff),
+							  eb = b1 - ((color >> 16) & 0xff);
+
+					if ((er | eg | eb) != 0) {
+						for (int k = 0; k < taps; k++) {
+							final int[] row = taprows[k];
+							final int o = e + tapoffsets[k],
+									  weight = weights[k];
+							row[o] += er * weight;
+							row[o + 1] += eg * weight;
+							row[o + 2] += eb * weight;
+						}
+					}
+				}
+
+				// Discard the error that was spread outside of the image
+				Arrays.fill(current, 0, reach * 3, 0);
+				Arrays.fill(current, (width + reach) * 3, length, 0);
+			}
+		}
+	}
+}
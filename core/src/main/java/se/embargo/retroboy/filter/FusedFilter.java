@@ -0,0 +1,41 @@
+package se.embargo.retroboy.filter;
+
+import se.embargo.core.graphic.color.IPalette;
+
+/**
+ * Decodes YUV frames and applies a row filter in a single pass.
+ */
+class FusedFilter implements IImageFilter {
+	private final YuvFilter _decoder;
+	private final IRowFilter _filter;
+	
+	public FusedFilter(YuvFilter decoder, IRowFilter filter) {
+		_decoder = decoder;
+		_filter = filter;
+	}
+
+	@Override
+	public int getEffectiveWidth(int framewidth, int frameheight) {
+		return _decoder.getEffectiveWidth(framewidth, frameheight);
+	}
+
+	@Override
+	public int getEffectiveHeight(int framewidth, int frameheight) {
+		return _decoder.getEffectiveHeight(framewidth, frameheight);
+	}
+
+	@Override
+	public boolean isColorFilter() {
+		return _decoder.isColorFilter() || _filter.isColorFilter();
+	}
+
+	@Override
+	public IPalette getPalette() {
+		return _filter.getPalette();
+	}
+
+	@Override
+	public void accept(ImageBuffer buffer) {
+		_decoder.accept(buffer, _filter);
+	}
+}
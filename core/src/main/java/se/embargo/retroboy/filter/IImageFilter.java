@@ -3,7 +3,6 @@ package se.embargo.retroboy.filter;
 import java.nio.IntBuffer;
 
 import se.embargo.core.graphic.color.IPalette;
-import android.graphics.Bitmap;
 
 public interface IImageFilter {
 	/**
@@ -39,7 +38,7 @@ public interface IImageFilter {
 	public void accept(ImageBuffer buffer);
 
 	/**
-	 * Camera frame buffer
+	 * Camera frame buffer, holds nothing but pixel data so that filters can run on any JVM.
 	 */
 	public class ImageBuffer {
 		/**
@@ -62,11 +61,6 @@ public interface IImageFilter {
 		 */
 		public int imagewidth, imageheight;
 
-		/**
-		 * Finished bitmap of output image.
-		 */
-		public Bitmap bitmap;
-		
 		/**
 		 * Timestamp when frame was captured in nanoseconds.
 		 */
@@ -89,16 +83,15 @@ public interface IImageFilter {
 		}
 
 		public ImageBuffer(int framewidth, int frameheight) {
-			this(null, framewidth, frameheight);
+			this((byte[])null, framewidth, frameheight);
 		}
 		
-		public ImageBuffer(Bitmap input) {
-			this(null, input.getWidth(), input.getHeight());
-			imagewidth = framewidth;
-			imageheight = frameheight;
+		public ImageBuffer(int[] pixels, int imagewidth, int imageheight) {
+			this((byte[])null, imagewidth, imageheight);
+			this.imagewidth = imagewidth;
+			this.imageheight = imageheight;
 			image = IntBuffer.wrap(new int[imagewidth * imageheight + imagewidth * 4]);
-			bitmap = input;
-			bitmap.copyPixelsToBuffer(image);
+			image.put(pixels, 0, imagewidth * imageheight);
 		}
 		
 		public void reset(byte[] data) {
@@ -0,0 +1,15 @@
+package se.embargo.retroboy.filter;
+
+/**
+ * Filter where each output row depends only on the same input row, which 
+ * allows it to run in the same pass as the YUV decode.
+ */
+public interface IRowFilter extends IImageFilter {
+	/**
+	 * Apply this filter to a range of rows.
+	 * @param buffer	Frame to process
+	 * @param first		First row to process
+	 * @param last		Last row to process (exclusive)
+	 */
+	public void accept(ImageBuffer buffer, int first, int last);
+}
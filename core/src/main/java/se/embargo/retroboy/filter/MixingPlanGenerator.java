@@ -0,0 +1,49 @@
+package se.embargo.retroboy.filter;
+
+import java.io.File;
+
+import se.embargo.retroboy.cache.FileCacheStorage;
+import se.embargo.retroboy.cache.ICacheStorage;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.Palettes;
+import se.embargo.retroboy.graphic.DitherMatrixes;
+
+/**
+ * Precomputes the mixing plans of the built-in color filters at build time, 
+ * so they can be shipped with the application instead of being built on the 
+ * device. The monochrome filters use plain palettes and need no tables. The
+ * blue noise matrix is generated here too, for the same reason.
+ */
+public class MixingPlanGenerator {
+	/**
+	 * Palettes available with the raster filter.
+	 */
+	private static final int[][] RASTER_PALETTES = {Palettes.AMSTRAD_CPC464, Palettes.COMMODORE_64_GAMMA_ADJUSTED};
+	
+	/**
+	 * Raster levels selectable in the preferences.
+	 */
+	private static final int[] RASTER_LEVELS = {100, 50, 25};
+	
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: MixingPlanGenerator <output directory>");
+			System.exit(1);
+		}
+		
+		// The filters write their tables to the storage, existing and up to date tables are kept
+		ICacheStorage storage = new FileCacheStorage(new File(args[0]));
+		
+		// The dither matrix doesn't affect the mixing plans
+		for (int[] palette : RASTER_PALETTES) {
+			for (int rasterlevel : RASTER_LEVELS) {
+				new RasterFilter(storage, null, Distances.LUV, palette, DitherMatrixes.MATRIX_4x4, rasterlevel);
+			}
+		}
+		
+		DitherMatrixes.createBlueNoise(storage);
+		
+		// Parallel may leave worker threads running
+		System.exit(0);
+	}
+}
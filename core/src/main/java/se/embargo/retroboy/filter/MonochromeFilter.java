@@ -0,0 +1,109 @@
+package se.embargo.retroboy.filter;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.logging.Logger;
+
+import se.embargo.core.concurrent.IMapReduceBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.retroboy.graphic.AutoExposure;
+
+/**
+ * Input filter used when processing existing images with a monochrome filter.
+ */
+public class MonochromeFilter extends AbstractFilter {
+	private static final Logger LOG = Logger.getLogger(MonochromeFilter.class.getName());
+	
+	private final Queue<int[]> _bufferpool = new ArrayBlockingQueue<int[]>(256);
+	private final IMapReduceBody<ImageBuffer, int[]> _body = new FilterBody();
+	private final float _factor;
+	
+	/**
+	 * Calculates the threshold, or null if auto exposure is disabled.
+	 */
+	private final AutoExposure _exposure;
+	
+	public MonochromeFilter(int contrast, boolean autoexposure) {
+		this(contrast, autoexposure ? new AutoExposure() : null);
+	}
+	
+	/**
+	 * @param contrast	Contrast adjustment in [-255, 255]
+	 * @param exposure	Calculates the threshold, or null to disable auto exposure
+	 */
+	public MonochromeFilter(int contrast, AutoExposure exposure) {
+		_factor = (259.0f * ((float)contrast + 255.0f)) / (255.0f * (259.0f - (float)contrast));
+		_exposure = exposure;
+	}
+
+	@Override
+	public void accept(ImageBuffer buffer) {
+		// Convert to monochrome and calculate the histogram in parallel
+		int[] histogram = Parallel.mapReduce(_body, buffer, 0, buffer.imagewidth * buffer.imageheight);
+	
+		// Calculate the global Otsu threshold
+		if (_exposure != null) {
+			buffer.threshold = _exposure.update(histogram);
+			LOG.fine("Threshold: " + buffer.threshold);
+		}
+		
+		// Release histogram back to pool
+		_bufferpool.offer(histogram);
+	}
+
+    private class FilterBody implements IMapReduceBody<ImageBuffer, int[]> {
+		@Override
+		public int[] reduce(int[] lhs, int[] rhs) {
+			for (int i = 0; i < lhs.length; i++) {
+				lhs[i] += rhs[i];
+			}
+			
+			_bufferpool.offer(rhs);
+			return lhs;
+		}
+
+		@Override
+		public int[] map(ImageBuffer buffer, int it, int last) {
+			final int[] image = buffer.image.array();
+			final int width = buffer.imagewidth,
+					  rowstep = _exposure != null ? _exposure.getRowStep() : 0;
+			final float factor = _factor;
+			
+			// Space to hold an image histogram
+			int[] histogram = _bufferpool.poll();
+			if (histogram == null) {
+				histogram = new int[256];
+			}
+			
+			Arrays.fill(histogram, 0);
+			
+			for (int i = it; i != last; ) {
+				// Only every n'th row contributes to the histogram
+				final int row = i / width,
+						  rowlast = Math.min((row + 1) * width, last);
+				final boolean sampled = rowstep != 0 && row % rowstep == 0;
+				
+				for (; i != rowlast; i++) {
+					final int pixel = image[i];
+				
+					// Convert to monochrome
+					final float lum = (0.299f * (pixel & 0xff) + 0.587f * ((pixel & 0xff00) >> 8) + 0.114f * ((pixel & 0xff0000) >> 16));
+				
+					// Apply the contrast adjustment
+					final int lumi = Math.min(Math.max(0, (int)(factor * (lum - 128.0f) + 128.0f)), 255);
+
+					// Build the histogram used to calculate the global threshold
+					if (sampled) {
+						histogram[lumi]++;
+					}
+				
+					// Output the pixel, but keep alpha channel intact
+					image[i] = (pixel & 0xff000000) | (lumi << 16) | (lumi << 8) | lumi;
+				}
+			}
+
+			return histogram;
+		}
+    }
+}
@@ -0,0 +1,268 @@
+package se.embargo.retroboy.filter;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.core.graphic.color.IColorQuantizer;
+import se.embargo.core.graphic.color.NeuQuant;
+import se.embargo.retroboy.color.AdaptiveBucketPalette;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.IPaletteSink;
+
+/**
+ * Samples frames and quantizes a continuously updated palette. 
+ * 
+ * The palette is learned from a fixed number of pixels spread evenly over the frame, so the cost 
+ * doesn't depend on the resolution. It's learned again every few frames, or earlier if the colors 
+ * of the scene change. Two palettes are alternated between and updated incrementally, so the 
+ * palette handed to the sink is reused two updates later. The following stage must be done with 
+ * it by then, which holds as long as frames pass through the filters in order.
+ * 
+ * Given an executor the palette is learned in the background, while frames pass through with the 
+ * last published palette. A learned palette is published by the next frame, so the incremental 
+ * update still happens in frame order.
+ */
+public class QuantizeFilter extends AbstractFilter {
+	/**
+	 * Default number of pixels sampled from each frame.
+	 */
+	public static final int DEFAULT_SAMPLES = 4096;
+	
+	/**
+	 * Default number of frames between palette updates.
+	 */
+	public static final int DEFAULT_INTERVAL = 8;
+	
+	/**
+	 * Default share of sampled pixels that must change histogram bin to update the palette early.
+	 */
+	public static final float DEFAULT_THRESHOLD = 0.2f;
+	
+	/**
+	 * The plastic number, which gives the R2 low-discrepancy sequence.
+	 * @link	http://extremelearning.com.au/unreasonable-effectiveness-of-quasirandom-sequences/
+	 */
+	private static final double PLASTIC = 1.32471795724474602596d;
+	
+	private final IPalette _palette;
+	private final IPaletteSink _sink;
+	private final IColorQuantizer _quantizer = new NeuQuant();
+	private final int _interval;
+	private final float _threshold;
+	
+	/**
+	 * Executor that learns palettes in the background, or null to learn them on the frame path.
+	 */
+	private final Executor _executor;
+	
+	/**
+	 * Pixels the background worker learns from.
+	 */
+	private final int[] _training;
+	
+	/**
+	 * Set while the background worker is learning a palette.
+	 */
+	private volatile boolean _learning = false;
+	
+	/**
+	 * Colors learned in the background that have yet to be published.
+	 */
+	private volatile int[] _learned = null;
+	
+	private final Runnable _learner = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				_learned = learn(_training);
+			}
+			finally {
+				_learning = false;
+			}
+		}
+	};
+	
+	/**
+	 * Offsets of the sampled pixels, and the frame size they were calculated for.
+	 */
+	private final int[] _offsets;
+	private int _width = 0, _height = 0;
+	
+	/**
+	 * Pixels sampled from the current frame.
+	 */
+	private final int[] _pixels;
+	
+	/**
+	 * The palette last handed to the sink, and the one to update next.
+	 */
+	private AdaptiveBucketPalette _front = null, _back = new AdaptiveBucketPalette(Distances.YUV);
+	
+	/**
+	 * Coarse color histogram of the current frame, and of the frame the palette was learned from.
+	 */
+	private int[] _histogram = new int[64], _reference = new int[64];
+	
+	/**
+	 * Number of frames since the palette was learned.
+	 */
+	private int _frames = 0;
+	
+	/**
+	 * @param	palette		The raw palette from which colors shall be selected.
+	 * @param	sink		Recipient of the selected palette.
+	 * @param	executor	Executor that learns palettes in the background, or null to learn them 
+	 * 						on the frame path.
+	 * @param	samples		Number of pixels sampled from each frame.
+	 * @param	interval	Number of frames between palette updates.
+	 * @param	threshold	Share of sampled pixels that must change color to update the palette early.
+	 */
+	public QuantizeFilter(
+			IPalette palette, IPaletteSink sink, Executor executor, int samples, int interval, float threshold) {
+		_palette = palette;
+		_sink = sink;
+		_executor = executor;
+		_offsets = new int[samples];
+		_pixels = new int[samples];
+		_training = executor != null ? new int[samples] : null;
+		_interval = interval;
+		_threshold = threshold;
+	}
+	
+	/**
+	 * @param	palette		The raw palette from which colors shall be selected.
+	 * @param	sink		Recipient of the selected palette.
+	 * @param	executor	Executor that learns palettes in the background, or null to learn them 
+	 * 						on the frame path.
+	 */
+	public QuantizeFilter(IPalette palette, IPaletteSink sink, Executor executor) {
+		this(palette, sink, executor, DEFAULT_SAMPLES, DEFAULT_INTERVAL, DEFAULT_THRESHOLD);
+	}
+	
+	/**
+	 * @param	palette	The raw palette from which colors shall be selected.
+	 * @param	sink	Recipient of the selected palette.
+	 */
+	public QuantizeFilter(IPalette palette, IPaletteSink sink) {
+		this(palette, sink, null);
+	}
+	
+	@Override
+	public boolean isColorFilter() {
+		return true;
+	}
+	
+	@Override
+	public synchronized void accept(ImageBuffer buffer) {
+		// Publish a palette learned in the background
+		final int[] learned = _learned;
+		if (learned != null) {
+			_learned = null;
+			publish(learned);
+		}
+		
+		samplePixels(buffer.image.array(), buffer.imagewidth, buffer.imageheight);
+		
+		// Keep the palette until it's due or the scene changes
+		final float change = sampleHistogram();
+		if (_learning || (_front != null && ++_frames < _interval && change < _threshold)) {
+			return;
+		}
+		
+		_frames = 0;
+		
+		int[] histogram = _reference;
+		_reference = _histogram;
+		_histogram = histogram;
+		
+		if (_executor != null) {
+			System.arraycopy(_pixels, 0, _training, 0, _pixels.length);
+			_learning = true;
+			_executor.execute(_learner);
+		}
+		else {
+			publish(learn(_pixels));
+		}
+		/*
+		int[] image = buffer.image.array();
+		for (int y = buffer.imageheight - 25; y < buffer.imageheight; y++) {
+			for (int x = 0; x < buffer.imagewidth; x++) {
+				int i = y * buffer.imagewidth + x;
+				image[i] = colors[x / (buffer.imagewidth / colors.length)];
+			}
+		}
+		*/
+	}
+	
+	/**
+	 * @return	The sorted colors learned from the pixels.
+	 */
+	private int[] learn(int[] pixels) {
+		_quantizer.sample(_palette, pixels, pixels.length, 1);
+		
+		int[] colors = _quantizer.getPalette();
+		Arrays.sort(colors);
+		return colors;
+	}
+	
+	/**
+	 * Updates the next palette to the given colors and hands it to the sink.
+	 */
+	private void publish(int[] colors) {
+		if (_front != null && Arrays.equals(colors, _front.getColors())) {
+			return;
+		}
+		
+		_back.update(colors, _front);
+		_sink.accept(_back);
+		
+		AdaptiveBucketPalette palette = _front != null ? _front : new AdaptiveBucketPalette(Distances.YUV);
+		_front = _back;
+		_back = palette;
+	}
+	
+	/**
+	 * Gathers pixels spread over the frame by a low-discrepancy sequence, small frames have some 
+	 * pixels sampled more than once.
+	 */
+	private void samplePixels(int[] image, int width, int height) {
+		if (width != _width || height != _height) {
+			final double a1 = 1d / PLASTIC, a2 = 1d / (PLASTIC * PLASTIC);
+			for (int i = 0; i < _offsets.length; i++) {
+				final double x = (0.5d + a1 * i) % 1d, 
+							 y = (0.5d + a2 * i) % 1d;
+				_offsets[i] = (int)(y * height) * width + (int)(x * width);
+			}
+			
+			_width = width;
+			_height = height;
+		}
+		
+		for (int i = 0; i < _offsets.length; i++) {
+			_pixels[i] = image[_offsets[i]];
+		}
+	}
+	
+	/**
+	 * Counts the sampled pixels in a coarse histogram.
+	 * @return	The share of sampled pixels that moved to another bin compared to the reference histogram.
+	 */
+	private float sampleHistogram() {
+		Arrays.fill(_histogram, 0);
+		
+		final int samples = _pixels.length;
+		for (int i = 0; i < samples; i++) {
+			final int color = _pixels[i];
+			_histogram[((color >> 6) & 0x03) | ((color >> 12) & 0x0c) | ((color >> 18) & 0x30)]++;
+		}
+		
+		int difference = 0;
+		for (int i = 0; i < _histogram.length; i++) {
+			difference += Math.abs(_histogram[i] - _reference[i]);
+		}
+		
+		// Each moved pixel is counted once in the bin it left and once in the bin it entered
+		return samples > 0 ? (float)difference / (samples * 2) : 0;
+	}
+}
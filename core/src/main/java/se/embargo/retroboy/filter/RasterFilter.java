@@ -0,0 +1,181 @@
+package se.embargo.retroboy.filter;
+
+import java.util.concurrent.Executor;
+
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.retroboy.cache.ICacheStorage;
+import se.embargo.retroboy.color.IColorDistance;
+import se.embargo.retroboy.graphic.DitherMatrix;
+
+/**
+ * 2-tone raster dithering as used on most Amstrad CPC games.
+ */
+public class RasterFilter extends AbstractColorFilter {
+	/**
+	 * Version number for the cache files
+	 */
+	private static final int CACHE_VERSION_NUMBER = 10;
+
+	/**
+	 * Number of integers per bucket.
+	 */
+	private static final int COLOR_BUCKET_SIZE = 2;
+
+	/**
+	 * Dither matrix thresholds.
+	 */
+	private final int[] _matrix;
+	
+	/**
+	 * Mask and shift that wrap coordinates into the matrix.
+	 */
+	private final int _mask, _shift;
+
+	/**
+	 * Thresholds of each row tiled for the unrolled loop, or null for large matrices.
+	 */
+	private final int[] _tiled;
+
+	/**
+	 * Maps a channel plus a threshold to the clamped channel with the mixing ratio subtracted.
+	 */
+	private final int[] _clamp;
+
+	/**
+	 * Divisor for the too-far-apart color penalty.
+	 */
+	private final double _penaltyDivisor;
+	
+	/**
+	 * Parallel functor used to process frames.
+	 */
+	private final IForBody<ImageBuffer> _body = new ColorBody();
+	
+	/**
+	 * @param storage		Storage for cached mixing plans
+	 * @param executor		Executor that builds uncached mixing plans, or null to build them on the calling thread
+	 * @param distance		Measure for color distance
+	 * @param colors		Palette of available colors
+	 * @param matrix		Dithering matrix to use
+	 * @param rasterlevel	Level of rastering to apply
+	 */
+	public RasterFilter(ICacheStorage storage, Executor executor, IColorDistance distance, int[] colors, DitherMatrix matrix, int rasterlevel) {
+		super("raster-" + rasterlevel, storage, executor, distance, colors, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER);
+		_matrix = matrix.thresholds;
+		_mask = matrix.mask;
+		_shift = matrix.shift;
+		_tiled = matrix.tiled;
+		
+		final int mixingratio = matrix.levels / 2;
+		_clamp = new int[256 + matrix.levels];
+		for (int i = 0; i < _clamp.length; i++) {
+			_clamp[i] = Math.max(0, Math.min(i - mixingratio, 255));
+		}
+		_penaltyDivisor = (double)rasterlevel / 10d;
+		
+		// Initialize buckets after members are initialized
+		init();
+	}
+    
+    @Override
+	public void process(ImageBuffer buffer) {
+    	Parallel.forRange(_body, buffer, 0, buffer.imageheight);
+	}
+    
+    @Override
+	public void process(ImageBuffer buffer, int first, int last) {
+    	_body.run(buffer, first, last);
+	}
+    
+    private class ColorBody implements IForBody<ImageBuffer> {
+		@Override
+		public void run(ImageBuffer buffer, int it, int last) {
+	    	final int[] image = buffer.image.array();
+			final int width = buffer.imagewidth;
+			
+			// Buckets need to be checked until they're all initialized
+			final boolean ready = isReady();
+			
+			for (int y = it; y < last; y++) {
+				final int yi = y * width,
+						  yt = (y & _mask) << _shift,
+						  odd = y & 0x01;
+				int x = 0;
+				
+				// Keep a row of thresholds in registers when the matrix is small, each covers two pixels
+				if (_tiled != null) {
+					final int tt = (y & _mask) * DitherMatrix.UNROLL;
+					final int t0 = _tiled[tt], t1 = _tiled[tt + 1], t2 = _tiled[tt + 2], t3 = _tiled[tt + 3],
+							  t4 = _tiled[tt + 4], t5 = _tiled[tt + 5], t6 = _tiled[tt + 6], t7 = _tiled[tt + 7];
+					
+					for (; x + DitherMatrix.UNROLL * 2 <= width; x += DitherMatrix.UNROLL * 2) {
+						final int i = x + yi;
+						image[i] = image[i + 1] = dither(image[i], t0, odd, ready);
+						image[i + 2] = image[i + 3] = dither(image[i + 2], t1, odd ^ 0x01, ready);
+						image[i + 4] = image[i + 5] = dither(image[i + 4], t2, odd, ready);
+						image[i + 6] = image[i + 7] = dither(image[i + 6], t3, odd ^ 0x01, ready);
+						image[i + 8] = image[i + 9] = dither(image[i + 8], t4, odd, ready);
+						image[i + 10] = image[i + 11] = dither(image[i + 10], t5, odd ^ 0x01, ready);
+						image[i + 12] = image[i + 13] = dither(image[i + 12], t6, odd, ready);
+						image[i + 14] = image[i + 15] = dither(image[i + 14], t7, odd ^ 0x01, ready);
+					}
+				}
+				
+				for (; x < width; x += 2) {
+					final int i = x + yi;
+					image[i] = dither(image[i], _matrix[((x >> 1) & _mask) + yt], ((x >> 1) & 0x01) ^ odd, ready);
+					
+					// Don't spill into the next row when the width is odd, it may be processed concurrently
+					if (x + 1 < width) {
+						image[i + 1] = image[i];
+					}
+				}
+			}
+		}
+		
+		private int dither(final int pixel, final int threshold, final int phase, final boolean ready) {
+			final int r1 = _clamp[(pixel & 0x000000ff) + threshold];
+			final int g1 = _clamp[((pixel & 0x0000ff00) >> 8) + threshold];
+			final int b1 = _clamp[((pixel & 0x00ff0000) >> 16) + threshold];
+
+			final int index = (r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb);
+			final int bucket = (ready ? index : ensureBucket(index)) * COLOR_BUCKET_SIZE;
+			return (pixel & 0xff000000) | _buckets[bucket + phase];
+		}
+    }
+
+    protected final void initBucket(final int[] buckets, final int bucket, final int r, final int g, final int b) {
+    	double minpenalty = Double.MAX_VALUE;
+        for (int i = 0; i < _colors.length; ++i) {
+	        for (int j = i; j < _colors.length; ++j) {
+	            // Determine the two component colors
+	            final int color1 = _colors[i], color2 = _colors[j];
+	            final int r1 = color1 & 0xff, 
+	            		  g1 = (color1 >> 8) & 0xff, 
+	            		  b1 = (color1 >> 16) & 0xff;
+	        
+	            final int r2 = color2 & 0xff, 
+	            		  g2 = (color2 >> 8) & 0xff, 
+	            		  b2 = (color2 >> 16) & 0xff;
+
+	            // Determine what mixing them in this proportion will produce
+	            int r0 = r1 + ((r2-r1) >> 1);
+	            int g0 = g1 + ((g2-g1) >> 1);
+	            int b0 = b1 + ((b2-b1) >> 1);
+	            
+	            double penalty = _distance.get(r,g,b, r0,g0,b0),
+	        	       r12dist = _distance.get(r1,g1,b1, r2,g2,b2);
+	            
+	            // Penalize color combinations too far apart
+	            penalty += r12dist / _penaltyDivisor;
+	            
+	            if (penalty < minpenalty) {
+	                minpenalty = penalty;
+	                buckets[bucket] = (color1 & 0xffffff);
+	                buckets[bucket + 1] = (color2 & 0xffffff);
+	            }
+	        }
+        }
+    }
+}
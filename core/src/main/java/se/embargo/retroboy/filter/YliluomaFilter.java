@@ -0,0 +1,191 @@
+package se.embargo.retroboy.filter;
+
+import java.util.concurrent.Executor;
+
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.retroboy.cache.ICacheStorage;
+import se.embargo.retroboy.color.IColorDistance;
+import se.embargo.retroboy.graphic.DitherMatrix;
+import se.embargo.retroboy.graphic.DitherMatrixes;
+
+/**
+ * 2-tone Yliluoma dithering.
+ * @link	http://bisqwit.iki.fi/story/howto/dither/jy/
+ */
+public class YliluomaFilter extends AbstractColorFilter {
+	/**
+	 * Number of integers per bucket.
+	 */
+	private static final int COLOR_BUCKET_SIZE = 3;
+	
+	/**
+	 * Version number for the cache files
+	 */
+	private static final int CACHE_VERSION_NUMBER = 6;
+
+	/**
+	 * Dither matrix thresholds.
+	 */
+	private final int[] _matrix;
+	
+	/**
+	 * Mask and shift that wrap coordinates into the matrix.
+	 */
+	private final int _mask, _shift;
+
+	/**
+	 * Thresholds of each row tiled for the unrolled loop, or null for large matrices.
+	 */
+	private final int[] _tiled;
+
+	/**
+	 * Number of threshold levels, the mixing plans depend on it.
+	 */
+	private final int _levels;
+
+	/**
+	 * Ratio of color mixing.
+	 */
+	private final int _mixingRatio;
+
+	/**
+	 * Parallel functor used to process frames.
+	 */
+	private final IForBody<ImageBuffer> _body = new ColorBody();
+	
+	/**
+	 * @param storage		Storage for cached mixing plans
+	 * @param executor		Executor that builds uncached mixing plans, or null to build them on the calling thread
+	 * @param distance		Measure for color distance
+	 * @param palette		Palette of available colors
+	 * @param matrix		Dithering matrix to use
+	 */
+	public YliluomaFilter(ICacheStorage storage, Executor executor, IColorDistance distance, int[] palette, DitherMatrix matrix) {
+		super("yduotone", storage, executor, distance, palette, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER | (matrix.levels << 16));
+		_matrix = matrix.thresholds;
+		_mask = matrix.mask;
+		_shift = matrix.shift;
+		_tiled = matrix.tiled;
+		_levels = matrix.levels;
+		_mixingRatio = matrix.levels / 2;
+	
+		// Initialize buckets after members are initialized
+		init();
+	}
+	
+	public YliluomaFilter(ICacheStorage storage, Executor executor, IColorDistance distance, int[] palette) {
+		this(storage, executor, distance, palette, DitherMatrixes.MATRIX_8x8);
+	}
+    
+    @Override
+	public void process(ImageBuffer buffer) {
+    	Parallel.forRange(_body, buffer, 0, buffer.imageheight);
+	}
+    
+    @Override
+	public void process(ImageBuffer buffer, int first, int last) {
+    	_body.run(buffer, first, last);
+	}
+    
+    private class ColorBody implements IForBody<ImageBuffer> {
+		@Override
+		public void run(ImageBuffer buffer, int it, int last) {
+	    	final int[] image = buffer.image.array();
+			final int width = buffer.imagewidth;
+			
+			// Buckets need to be checked until they're all initialized
+			final boolean ready = isReady();
+			
+			for (int y = it; y < last; y++) {
+				final int yi = y * width,
+						  yt = (y & _mask) << _shift;
+				int x = 0;
+				
+				// Keep a row of thresholds in registers when the matrix is small
+				if (_tiled != null) {
+					final int tt = (y & _mask) * DitherMatrix.UNROLL;
+					final int t0 = _tiled[tt], t1 = _tiled[tt + 1], t2 = _tiled[tt + 2], t3 = _tiled[tt + 3],
+							  t4 = _tiled[tt + 4], t5 = _tiled[tt + 5], t6 = _tiled[tt + 6], t7 = _tiled[tt + 7];
+					
+					for (; x + DitherMatrix.UNROLL <= width; x += DitherMatrix.UNROLL) {
+						final int i = x + yi;
+						image[i] = dither(image[i], t0, ready);
+						image[i + 1] = dither(image[i + 1], t1, ready);
+						image[i + 2] = dither(image[i + 2], t2, ready);
+						image[i + 3] = dither(image[i + 3], t3, ready);
+						image[i + 4] = dither(image[i + 4], t4, ready);
+						image[i + 5] = dither(image[i + 5], t5, ready);
+						image[i + 6] = dither(image[i + 6], t6, ready);
+						image[i + 7] = dither(image[i + 7], t7, ready);
+					}
+				}
+				
+				for (; x < width; x++) {
+					final int i = x + yi;
+					image[i] = dither(image[i], _matrix[(x & _mask) + yt], ready);
+				}
+			}
+		}
+		
+		private int dither(final int pixel, final int threshold, final boolean ready) {
+			final int r1 = pixel & 0x000000ff;
+			final int g1 = (pixel & 0x0000ff00) >> 8;
+			final int b1 = (pixel & 0x00ff0000) >> 16;
+			
+			final int index = (r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb);
+			final int bucket = (ready ? index : ensureBucket(index)) * COLOR_BUCKET_SIZE;
+			final int ratio = _buckets[bucket + 2];
+			return (pixel & 0xff000000) | (threshold < ratio ? _buckets[bucket + 1] : _buckets[bucket]);
+		}
+    }
+    
+    protected final void initBucket(final int[] buckets, final int bucket, final int r, final int g, final int b) {
+    	double minpenalty = Double.MAX_VALUE;
+        for (int i = 0; i < _colors.length; ++i) {
+	        for (int j = i; j < _colors.length; ++j) {
+	            // Determine the two component colors
+	            final int color1 = _colors[i], color2 = _colors[j];
+	            final int r1 = color1 & 0xff, 
+	            		  g1 = (color1 >> 8) & 0xff, 
+	            		  b1 = (color1 >> 16) & 0xff;
+	        
+	            final int r2 = color2 & 0xff, 
+	            		  g2 = (color2 >> 8) & 0xff, 
+	            		  b2 = (color2 >> 16) & 0xff;
+
+	            int ratio = _mixingRatio;
+	            if (color1 != color2) {
+	                // Determine the ratio of mixing for each channel.
+	                //   solve(r1 + ratio*(r2-r1)/_levels = r, ratio)
+	                // Take a weighed average of these three ratios according to the
+	                // perceived luminosity of each channel (according to CCIR 601).
+	                ratio = ((r2 != r1 ? 299*_levels * (r - r1) / (r2-r1) : 0)
+	                      +  (g2 != g1 ? 587*_levels * (g - g1) / (g2-g1) : 0)
+	                      +  (b2 != b1 ? 114*_levels * (b - b1) / (b2-b1) : 0))
+	                      / ((r2 != r1 ? 299 : 0)
+	                       + (g2 != g1 ? 587 : 0)
+	                       + (b2 != b1 ? 114 : 0));
+	                
+	                ratio = Math.max(0, Math.min(ratio, _levels - 1));
+	            }
+
+	            // Determine what mixing them in this proportion will produce
+	            int r0 = r1 + ratio * (r2-r1) / _levels;
+	            int g0 = g1 + ratio * (g2-g1) / _levels;
+	            int b0 = b1 + ratio * (b2-b1) / _levels;
+	            
+	        	double rdist = _distance.get(r,g,b, r0,g0,b0),
+	        	       r12dist = _distance.get(r1,g1,b1, r2,g2,b2);
+	            
+	        	double penalty = rdist + r12dist / 10 * (Math.abs(ratio - _mixingRatio) + _mixingRatio) / _levels;
+	            if (penalty < minpenalty) {
+	                minpenalty = penalty;
+	                buckets[bucket] = (color1 & 0xffffff);
+	                buckets[bucket + 1] = (color2 & 0xffffff);
+	                buckets[bucket + 2] = ratio;
+	            }
+	        }
+        }
+    }
+}
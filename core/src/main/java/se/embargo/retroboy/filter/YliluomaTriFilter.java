@@ -1,10 +1,13 @@
 package se.embargo.retroboy.filter;
 
+import java.util.concurrent.Executor;
+
 import se.embargo.core.concurrent.IForBody;
 import se.embargo.core.concurrent.Parallel;
+import se.embargo.retroboy.cache.ICacheStorage;
 import se.embargo.retroboy.color.IColorDistance;
+import se.embargo.retroboy.graphic.DitherMatrix;
 import se.embargo.retroboy.graphic.DitherMatrixes;
-import android.content.Context;
 
 /**
  * 3-tone Yliluoma dithering.
@@ -17,51 +20,80 @@ public class YliluomaTriFilter extends AbstractColorFilter {
 	private static final int COLOR_BUCKET_SIZE = 5;
 
 	/**
-	 * Dither matrix.
+	 * Version number for the cache files
+	 */
+	private static final int CACHE_VERSION_NUMBER = 6;
+
+	/**
+	 * Dither matrix thresholds.
 	 */
-	private static final int[] _matrix = DitherMatrixes.MATRIX_8x8;
+	private final int[] _matrix;
 	
 	/**
-	 * Length of matrix side.
+	 * Mask and shift that wrap coordinates into the matrix.
 	 */
-	private static final int _patternsize = (int)Math.sqrt(_matrix.length);
+	private final int _mask, _shift;
 
 	/**
-	 * Ratio of color mixing.
+	 * Number of threshold levels, the mixing plans depend on it.
 	 */
-	private static final int _mixingRatio = _matrix.length / 2;
+	private final int _levels;
 
 	/**
-	 * Version number for the cache files
+	 * Ratio of color mixing.
 	 */
-	private static final int CACHE_VERSION_NUMBER = 6 | (_matrix.length << 16);
+	private final int _mixingRatio;
 
 	/**
 	 * Parallel functor used to process frames.
 	 */
 	private final IForBody<ImageBuffer> _body = new ColorBody();
 	
-	public YliluomaTriFilter(Context context, IColorDistance distance, int[] palette) {
-		super("ytritone", context, distance, palette, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER);
+	/**
+	 * @param storage		Storage for cached mixing plans
+	 * @param executor		Executor that builds uncached mixing plans, or null to build them on the calling thread
+	 * @param distance		Measure for color distance
+	 * @param palette		Palette of available colors
+	 * @param matrix		Dithering matrix to use
+	 */
+	public YliluomaTriFilter(ICacheStorage storage, Executor executor, IColorDistance distance, int[] palette, DitherMatrix matrix) {
+		super("ytritone", storage, executor, distance, palette, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER | (matrix.levels << 16));
+		_matrix = matrix.thresholds;
+		_mask = matrix.mask;
+		_shift = matrix.shift;
+		_levels = matrix.levels;
+		_mixingRatio = matrix.levels / 2;
 	
 		// Initialize buckets after members are initialized
 		init();
 	}
+	
+	public YliluomaTriFilter(ICacheStorage storage, Executor executor, IColorDistance distance, int[] palette) {
+		this(storage, executor, distance, palette, DitherMatrixes.MATRIX_8x8);
+	}
 
     @Override
 	public void process(ImageBuffer buffer) {
     	Parallel.forRange(_body, buffer, 0, buffer.imageheight);
 	}
+    
+    @Override
+	public void process(ImageBuffer buffer, int first, int last) {
+    	_body.run(buffer, first, last);
+	}
 
     private class ColorBody implements IForBody<ImageBuffer> {
 		@Override
 		public void run(ImageBuffer buffer, int it, int last) {
 	    	final int[] image = buffer.image.array();
 			final int width = buffer.imagewidth;
+			
+			// Buckets need to be checked until they're all initialized
+			final boolean ready = isReady();
 
 			for (int y = it; y < last; y++) {
 				final int yi = y * width,
-						  yt = (y % _patternsize) * _patternsize;
+						  yt = (y & _mask) << _shift;
 				
 				for (int x = 0; x < width; x++) {
 					final int i = x + yi;
@@ -71,14 +103,15 @@ public class YliluomaTriFilter extends AbstractColorFilter {
 					final int g1 = (pixel & 0x0000ff00) >> 8;
 					final int b1 = (pixel & 0x00ff0000) >> 16;
 					
-					final int bucket = ((r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb)) * COLOR_BUCKET_SIZE;
+					final int index = (r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb);
+					final int bucket = (ready ? index : ensureBucket(index)) * COLOR_BUCKET_SIZE;
 					final int ratio = _buckets[bucket + 4];
 					
 					if (ratio == 256) {
 						image[i] = (pixel & 0xff000000) | (_buckets[bucket + ((y & 0x01) * 2) + (x & 0x01)]);
 					}
 					else {
-						final int threshold = _matrix[x % _patternsize + yt];
+						final int threshold = _matrix[(x & _mask) + yt];
 						image[i] = (pixel & 0xff000000) | (threshold < ratio ? _buckets[bucket + 1] : _buckets[bucket]);
 					}
 				}
@@ -86,7 +119,7 @@ public class YliluomaTriFilter extends AbstractColorFilter {
 		}
     }
     
-    protected final void initBucket(final int bucket, final int r, final int g, final int b) {
+    protected final void initBucket(final int[] buckets, final int bucket, final int r, final int g, final int b) {
     	double minpenalty = Double.MAX_VALUE;
         for (int i = 0; i < _colors.length; ++i) {
 	        for (int j = i; j < _colors.length; ++j) {
@@ -103,33 +136,33 @@ public class YliluomaTriFilter extends AbstractColorFilter {
 	            int ratio = _mixingRatio;
 	            if (color1 != color2) {
 	                // Determine the ratio of mixing for each channel.
-	                //   solve(r1 + ratio*(r2-r1)/_matrix.length = r, ratio)
+	                //   solve(r1 + ratio*(r2-r1)/_levels = r, ratio)
 	                // Take a weighed average of these three ratios according to the
 	                // perceived luminosity of each channel (according to CCIR 601).
-	                ratio = ((r2 != r1 ? 299*_matrix.length * (r - r1) / (r2-r1) : 0)
-	                      +  (g2 != g1 ? 587*_matrix.length * (g - g1) / (g2-g1) : 0)
-	                      +  (b2 != b1 ? 114*_matrix.length * (b - b1) / (b2-b1) : 0))
+	                ratio = ((r2 != r1 ? 299*_levels * (r - r1) / (r2-r1) : 0)
+	                      +  (g2 != g1 ? 587*_levels * (g - g1) / (g2-g1) : 0)
+	                      +  (b2 != b1 ? 114*_levels * (b - b1) / (b2-b1) : 0))
 	                      / ((r2 != r1 ? 299 : 0)
 	                       + (g2 != g1 ? 587 : 0)
 	                       + (b2 != b1 ? 114 : 0));
 	                
-	                ratio = Math.max(0, Math.min(ratio, _matrix.length - 1));
+	                ratio = Math.max(0, Math.min(ratio, _levels - 1));
 	            }
 
 	            // Determine what mixing them in this proportion will produce
-	            int r0 = r1 + ratio * (r2-r1) / _matrix.length;
-	            int g0 = g1 + ratio * (g2-g1) / _matrix.length;
-	            int b0 = b1 + ratio * (b2-b1) / _matrix.length;
+	            int r0 = r1 + ratio * (r2-r1) / _levels;
+	            int g0 = g1 + ratio * (g2-g1) / _levels;
+	            int b0 = b1 + ratio * (b2-b1) / _levels;
 	            
 	            double rdist = _distance.get(r,g,b, r0,g0,b0),
 	        	       r12dist = _distance.get(r1,g1,b1, r2,g2,b2);
 	            
-	            double penalty = rdist + r12dist / 10 * (Math.abs(ratio - _mixingRatio) + _mixingRatio) / _matrix.length;
+	            double penalty = rdist + r12dist / 10 * (Math.abs(ratio - _mixingRatio) + _mixingRatio) / _levels;
 	            if (penalty < minpenalty) {
 	                minpenalty = penalty;
-	                _buckets[bucket] = color1;
-	                _buckets[bucket + 1] = color2;
-	                _buckets[bucket + 4] = ratio;
+	                buckets[bucket] = color1;
+	                buckets[bucket + 1] = color2;
+	                buckets[bucket + 4] = ratio;
 	            }
 	            
 	            if (i != j) {
@@ -152,11 +185,11 @@ public class YliluomaTriFilter extends AbstractColorFilter {
 	    	            penalty = rdist + r12dist / 40 + _distance.get((r1+g1)/2,(g1+g2)/2,(b1+b2)/2, r3,g3,b3) / 40;
 	    	            if (penalty < minpenalty) {
 	    	                minpenalty = penalty;
-	    	                _buckets[bucket] = (color3 & 0xffffff);
-	    	                _buckets[bucket + 1] = (color1 & 0xffffff);
-	    	                _buckets[bucket + 2] = (color2 & 0xffffff);
-	    	                _buckets[bucket + 3] = (color3 & 0xffffff);
-	    	                _buckets[bucket + 4] = 256;
+	    	                buckets[bucket] = (color3 & 0xffffff);
+	    	                buckets[bucket + 1] = (color1 & 0xffffff);
+	    	                buckets[bucket + 2] = (color2 & 0xffffff);
+	    	                buckets[bucket + 3] = (color3 & 0xffffff);
+	    	                buckets[bucket + 4] = 256;
 	    	            }
 	            	}
 	            }
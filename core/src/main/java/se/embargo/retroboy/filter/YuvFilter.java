@@ -0,0 +1,549 @@
+package se.embargo.retroboy.filter;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.logging.Logger;
+
+import se.embargo.core.concurrent.IMapReduceBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.graphic.AutoExposure;
+
+/**
+ * Decodes YUV frames into RGB images.
+ */
+public class YuvFilter implements IImageFilter {
+	private static final Logger LOG = Logger.getLogger(YuvFilter.class.getName());
+	
+	/**
+	 * Method used to reduce the frame to the image resolution.
+	 */
+	public enum Downsample {
+		/**
+		 * Pick the nearest pixel, at any ratio.
+		 */
+		Point,
+		
+		/**
+		 * Average the pixels of each block, at the nearest integer ratio that doesn't exceed the resolution.
+		 */
+		Box
+	}
+	
+	private final int _width, _height;
+	private final boolean _color;
+	private final Downsample _downsample;
+	
+	/**
+	 * Calculates the threshold, or null if auto exposure is disabled.
+	 */
+	private final AutoExposure _exposure;
+	
+	/**
+	 * Contrast adjusted luminance indexed by the raw Y sample.
+	 */
+	private final int[] _contrast = new int[256];
+	
+	/**
+	 * Source offsets for the current frame geometry.
+	 */
+	private volatile Sampling _sampling;
+	
+	private final Queue<int[]> _bufferpool = new ArrayBlockingQueue<int[]>(256);
+	private final Queue<int[]> _rowpool = new ArrayBlockingQueue<int[]>(256);
+	private final FilterBody _body;
+	
+	/**
+	 * Functor used for fused decode and filtering.
+	 */
+	private volatile FusedBody _fused;
+	
+	public YuvFilter(int width, int height, int contrast, boolean color, boolean autoexposure) {
+		this(width, height, contrast, color, autoexposure, Downsample.Point);
+	}
+	
+	public YuvFilter(int width, int height, int contrast, boolean color, boolean autoexposure, Downsample downsample) {
+		this(width, height, contrast, color, autoexposure ? new AutoExposure() : null, downsample);
+	}
+	
+	/**
+	 * @param width			Maximum image width
+	 * @param height		Maximum image height
+	 * @param contrast		Contrast adjustment in [-255, 255]
+	 * @param color			Decode chroma into a color image
+	 * @param exposure		Calculates the threshold, or null to disable auto exposure
+	 * @param downsample	Method used to reduce the frame to the image resolution
+	 */
+	public YuvFilter(int width, int height, int contrast, boolean color, AutoExposure exposure, Downsample downsample) {
+		_width = width;
+		_height = height;
+		_color = color;
+		_exposure = exposure;
+		_downsample = downsample;
+		
+		// Apply the contrast adjustment to every possible luminance value
+		final float factor = (259.0f * ((float)contrast + 255.0f)) / (255.0f * (259.0f - (float)contrast));
+		for (int i = 0; i < 256; i++) {
+			final float lum = i - 16.0f;
+			_contrast[i] = Math.max(0, Math.min((int)(factor * (lum - 128.0f) + 128.0f), 255));
+		}
+		
+		if (downsample == Downsample.Box) {
+			_body = new BoxBody();
+		}
+		else if (color) {
+			_body = new ColorBody();
+		}
+		else {
+			_body = new MonochromeBody();
+		}
+	}
+	
+	@Override
+	public int getEffectiveWidth(int framewidth, int frameheight) {
+		final float stride = getStride(framewidth, frameheight); 
+		return Math.min((int)(framewidth / stride), _width);
+	}
+	
+	@Override
+	public int getEffectiveHeight(int framewidth, int frameheight) {
+		final float stride = getStride(framewidth, frameheight); 
+		return Math.min((int)(frameheight / stride), _height);
+	}
+	
+	@Override
+	public boolean isColorFilter() {
+		return _color;
+	}
+	
+	@Override
+	public IPalette getPalette() {
+		return null;
+	}
+	
+	@Override
+	public void accept(ImageBuffer buffer) {
+		resize(buffer);
+		
+		// Downsample and convert the YUV frame to RGB image in parallel
+		int[] histogram = Parallel.mapReduce(_body, buffer, 0, buffer.imageheight);
+		threshold(buffer, histogram);
+	}
+	
+	/**
+	 * Decodes the frame and applies a row filter to each chunk of rows while 
+	 * they're still in cache, instead of making a separate pass over the image.
+	 * The Otsu threshold isn't known until the whole frame has been decoded, so 
+	 * the row filter sees the threshold of the previous frame.
+	 * @param buffer	Frame to decode
+	 * @param filter	Filter to apply to the decoded rows
+	 */
+	public void accept(ImageBuffer buffer, IRowFilter filter) {
+		FusedBody body = _fused;
+		if (body == null || body.filter != filter) {
+			body = _fused = new FusedBody(filter);
+		}
+		
+		resize(buffer);
+		
+		if (_exposure != null) {
+			buffer.threshold = _exposure.getThreshold();
+		}
+		
+		int[] histogram = Parallel.mapReduce(body, buffer, 0, buffer.imageheight);
+		threshold(buffer, histogram);
+	}
+	
+	private void resize(ImageBuffer buffer) {
+		// Select the dimension that most closely matches the bounds
+		final float framewidth = buffer.framewidth, frameheight = buffer.frameheight;
+		final float stride = getStride(framewidth, frameheight);
+		
+		buffer.imagewidth = Math.min((int)(framewidth / stride), _width);
+		buffer.imageheight = Math.min((int)(frameheight / stride), _height);
+		final int imagesize = buffer.imagewidth * buffer.imageheight + buffer.imagewidth * 4;
+		
+		// Change the buffer dimensions
+		if (buffer.image == null || buffer.image.array().length < imagesize) {
+			LOG.fine("Allocating image buffer for " + imagesize + " pixels (" + buffer.image + ")");
+			buffer.image = IntBuffer.wrap(new int[imagesize]);
+		}
+		
+		// Rebuild the offset tables when the frame size changes
+		Sampling sampling = _sampling;
+		if (sampling == null || sampling.framewidth != buffer.framewidth || sampling.frameheight != buffer.frameheight) {
+			LOG.fine("Building sampling tables for " + buffer.framewidth + "x" + buffer.frameheight + " frames");
+			_sampling = new Sampling(buffer, stride, _color && _downsample == Downsample.Point);
+		}
+	}
+	
+	private void threshold(ImageBuffer buffer, int[] histogram) {
+		// Calculate the global Otsu threshold
+		if (_exposure != null) {
+			buffer.threshold = _exposure.update(histogram);
+		}
+		
+		// Release histogram back to pool
+		_bufferpool.offer(histogram);
+	}
+	
+	private abstract class FilterBody implements IMapReduceBody<ImageBuffer, int[]> {
+		@Override
+		public int[] map(ImageBuffer buffer, int it, int last) {
+			// Space to hold an image histogram
+			int[] histogram = _bufferpool.poll();
+			if (histogram == null) {
+				histogram = new int[256];
+			}
+			
+			Arrays.fill(histogram, 0);
+			decode(buffer, histogram, it, last);
+			return histogram;
+		}
+		
+		@Override
+		public int[] reduce(int[] lhs, int[] rhs) {
+			for (int i = 0; i < lhs.length; i++) {
+				lhs[i] += rhs[i];
+			}
+			
+			_bufferpool.offer(rhs);
+			return lhs;
+		}
+		
+		/**
+		 * Decodes a range of image rows.
+		 * @param buffer	Frame to decode
+		 * @param histogram	Histogram to accumulate the luminance of sampled rows into
+		 * @param it		First image row
+		 * @param last		Last image row (exclusive)
+		 */
+		protected abstract void decode(ImageBuffer buffer, int[] histogram, int it, int last);
+		
+		/**
+		 * Accumulates the contrast adjusted luminance of a point sampled row.
+		 */
+		protected void histogram(int[] histogram, byte[] data, int[] columns, int yi) {
+			final int[] contrast = _contrast;
+			for (int xi = 0; xi < columns.length; xi++) {
+				histogram[contrast[(int)data[columns[xi] + yi] & 0xff]]++;
+			}
+		}
+	}
+	
+	private class FusedBody implements IMapReduceBody<ImageBuffer, int[]> {
+		public final IRowFilter filter;
+		
+		public FusedBody(IRowFilter filter) {
+			this.filter = filter;
+		}
+		
+		@Override
+		public int[] map(ImageBuffer buffer, int it, int last) {
+			int[] histogram = _body.map(buffer, it, last);
+			filter.accept(buffer, it, last);
+			return histogram;
+		}
+		
+		@Override
+		public int[] reduce(int[] lhs, int[] rhs) {
+			return _body.reduce(lhs, rhs);
+		}
+	}
+	
+	private class ColorBody extends FilterBody {
+		@Override
+		protected void decode(ImageBuffer buffer, int[] histogram, int it, int last) {
+			final Sampling sampling = _sampling;
+			final int rowstep = _exposure != null ? _exposure.getRowStep() : 0;
+			final int[] columns = sampling.columns, rows = sampling.rows, uvrows = sampling.uvrows;
+			final int[][] uvcolumns = sampling.uvcolumns;
+			final int[] contrast = _contrast;
+			final byte[] data = buffer.frame;
+
+			final int[] image = buffer.image.array();
+			final int imagewidth = buffer.imagewidth,
+					  width = columns.length;
+
+			// Convert YUV chunk to color
+			for (int row = it, yo = it * imagewidth; row < last; row++, yo += imagewidth) {
+				final int yi = rows[row], 
+						  uvi = uvrows[row];
+				final int[] uvcolumn = uvcolumns[row];
+				int u = 0, v = 0;  
+				
+				// Build the histogram used to calculate the global threshold
+				if (rowstep != 0 && row % rowstep == 0) {
+					histogram(histogram, data, columns, yi);
+				}
+				
+				for (int xi = 0; xi < width; xi++) {
+					// Convert from YUV luminance and apply the contrast adjustment
+					final int lumi = contrast[(int)data[columns[xi] + yi] & 0xff];
+					
+					// Fetch new UV values every other iteration
+					if ((xi & 0x01) == 0) {  
+						final int uvpi = uvi + uvcolumn[xi >> 1];
+						v = ((int)data[uvpi] & 0xff) - 128;  
+						u = ((int)data[uvpi + 1] & 0xff) - 128;
+					}
+					
+					// Convert to RGB
+					int y1192 = 1192 * lumi;
+					int r = Math.max(0, Math.min(y1192 + 1634 * v, 262143));
+					int g = Math.max(0, Math.min(y1192 - 833 * v - 400 * u, 262143));  
+					int b = Math.max(0, Math.min(y1192 + 2066 * u, 262143));
+					
+					// Output the pixel
+					image[yo + xi] = 0xff000000 | ((b << 6) & 0x00ff0000)  | ((g >> 2) & 0x0000ff00) |  ((r >> 10) & 0x000000ff);
+				}
+			}
+		}
+	}
+	
+	private class MonochromeBody extends FilterBody {
+		@Override
+		protected void decode(ImageBuffer buffer, int[] histogram, int it, int last) {
+			final Sampling sampling = _sampling;
+			final int rowstep = _exposure != null ? _exposure.getRowStep() : 0;
+			final int[] columns = sampling.columns, rows = sampling.rows;
+			final int[] contrast = _contrast;
+			final byte[] data = buffer.frame;
+
+			final int[] image = buffer.image.array();
+			final int imagewidth = buffer.imagewidth,
+					  width = columns.length;
+
+			// Convert YUV chunk to monochrome
+			for (int row = it, yo = it * imagewidth; row < last; row++, yo += imagewidth) {
+				final int yi = rows[row];
+				
+				// Build the histogram used to calculate the global threshold
+				if (rowstep != 0 && row % rowstep == 0) {
+					histogram(histogram, data, columns, yi);
+				}
+
+				for (int xi = 0; xi < width; xi++) {
+					// Convert from YUV luminance and apply the contrast adjustment
+					final int color = contrast[(int)data[columns[xi] + yi] & 0xff];
+					
+					// Output the pixel
+					image[yo + xi] = 0xff000000 | (color << 16) | (color << 8) | color;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Averages each block of pixels, summing a row of blocks at a time into 
+	 * per-column accumulators.
+	 */
+	private class BoxBody extends FilterBody {
+		@Override
+		protected void decode(ImageBuffer buffer, int[] histogram, int it, int last) {
+			final Sampling sampling = _sampling;
+			final int rowstep = _exposure != null ? _exposure.getRowStep() : 0;
+			final int[] rows = sampling.rows;
+			final int[] contrast = _contrast;
+			final boolean color = _color;
+			final byte[] data = buffer.frame;
+
+			final int[] image = buffer.image.array();
+			final int imagewidth = buffer.imagewidth,
+					  width = sampling.columns.length,
+					  framewidth = buffer.framewidth,
+					  framesize = buffer.framewidth * buffer.frameheight,
+					  block = sampling.blocksize,
+					  area = block * block;
+			
+			// Accumulators for luminance and chroma sums
+			int[] sums = _rowpool.poll();
+			if (sums == null || sums.length < width * 3) {
+				sums = new int[width * 3];
+			}
+			
+			final int vo = width, uo = width * 2;
+
+			for (int row = it, yo = it * imagewidth; row < last; row++, yo += imagewidth) {
+				Arrays.fill(sums, 0, width * 3, 0);
+				
+				// Sum the luminance of each block
+				for (int yi = rows[row], ylast = yi + block * framewidth; yi < ylast; yi += framewidth) {
+					for (int xi = 0, ii = yi; xi < width; xi++) {
+						int sum = 0;
+						for (int ilast = ii + block; ii < ilast; ii++) {
+							sum += (int)data[ii] & 0xff;
+						}
+						
+						sums[xi] += sum;
+					}
+				}
+				
+				// Sum the chroma covering each block
+				final int y = row * block, 
+						  uvfirst = y >> 1, 
+						  uvlast = (y + block - 1) >> 1;
+				
+				if (color) {
+					for (int uvy = uvfirst; uvy <= uvlast; uvy++) {
+						final int uvi = framesize + uvy * framewidth;
+						
+						for (int xi = 0, x = 0; xi < width; xi++, x += block) {
+							for (int uvx = x >> 1, uvxlast = (x + block - 1) >> 1; uvx <= uvxlast; uvx++) {
+								sums[vo + xi] += (int)data[uvi + uvx * 2] & 0xff;
+								sums[uo + xi] += (int)data[uvi + uvx * 2 + 1] & 0xff;
+							}
+						}
+					}
+				}
+				
+				// Build the histogram used to calculate the global threshold
+				final boolean sampled = rowstep != 0 && row % rowstep == 0;
+				
+				for (int xi = 0, x = 0; xi < width; xi++, x += block) {
+					// Apply the contrast adjustment to the average luminance
+					final int lumi = contrast[sums[xi] / area];
+					
+					if (sampled) {
+						histogram[lumi]++;
+					}
+					
+					if (!color) {
+						image[yo + xi] = 0xff000000 | (lumi << 16) | (lumi << 8) | lumi;
+						continue;
+					}
+					
+					// Average the chroma samples
+					final int uvcount = (((x + block - 1) >> 1) - (x >> 1) + 1) * (uvlast - uvfirst + 1);
+					final int v = sums[vo + xi] / uvcount - 128,
+							  u = sums[uo + xi] / uvcount - 128;
+					
+					// Convert to RGB
+					int y1192 = 1192 * lumi;
+					int r = Math.max(0, Math.min(y1192 + 1634 * v, 262143));
+					int g = Math.max(0, Math.min(y1192 - 833 * v - 400 * u, 262143));  
+					int b = Math.max(0, Math.min(y1192 + 2066 * u, 262143));
+					
+					// Output the pixel
+					image[yo + xi] = 0xff000000 | ((b << 6) & 0x00ff0000)  | ((g >> 2) & 0x0000ff00) |  ((r >> 10) & 0x000000ff);
+				}
+			}
+			
+			_rowpool.offer(sums);
+		}
+	}
+	
+	/**
+	 * Source offsets for each output pixel, which keeps float stepping and 
+	 * float to int conversions out of the per-pixel loops. The tables are 
+	 * built with the same float arithmetic the sampling has always used, 
+	 * so the decoded images are unchanged.
+	 */
+	private static class Sampling {
+		public final int framewidth, frameheight;
+		
+		/**
+		 * Side of the block that is averaged into each output pixel.
+		 */
+		public final int blocksize;
+		
+		/**
+		 * Luminance offset of each output column and row.
+		 */
+		public final int[] columns, rows;
+		
+		/**
+		 * Chroma offset of each output row, and offsets relative to it for every other output column.
+		 */
+		public final int[] uvrows;
+		public final int[][] uvcolumns;
+		
+		public Sampling(ImageBuffer buffer, float stride, boolean color) {
+			framewidth = buffer.framewidth;
+			frameheight = buffer.frameheight;
+			blocksize = (int)stride;
+			
+			final float framewidthf = framewidth, 
+						framesize = framewidthf * frameheight;
+			
+			// Columns stop at whichever comes first of the frame and the image edge
+			int width = 0;
+			for (float x = 0; x < framewidthf && width < buffer.imagewidth; x += stride) {
+				width++;
+			}
+			
+			columns = new int[width];
+			float x = 0;
+			for (int xi = 0; xi < width; xi++, x += stride) {
+				columns[xi] = (int)x;
+			}
+			
+			rows = new int[buffer.imageheight];
+			for (int row = 0; row < rows.length; row++) {
+				rows[row] = (int)(row * stride) * framewidth;
+			}
+			
+			if (!color) {
+				uvrows = null;
+				uvcolumns = null;
+				return;
+			}
+			
+			// Chroma offsets accumulate rounding differently depending on the row, keep 
+			// one table per distinct sequence which in practice is just a handful 
+			uvrows = new int[rows.length];
+			uvcolumns = new int[rows.length][];
+			List<int[]> distinct = new ArrayList<int[]>();
+			
+			for (int row = 0; row < rows.length; row++) {
+				final int y = (int)(row * stride);
+				final int[] uvcolumn = new int[(width + 1) / 2];
+				float uvp = framesize + (y >> 1) * framewidth;
+				uvrows[row] = (int)uvp;
+				
+				for (int i = 0; i < uvcolumn.length; i++) {
+					uvcolumn[i] = ((int)uvp & 0xfffffffe) - uvrows[row];
+					uvp += stride + stride;
+				}
+				
+				uvcolumns[row] = uvcolumn;
+				for (int[] candidate : distinct) {
+					if (Arrays.equals(candidate, uvcolumn)) {
+						uvcolumns[row] = candidate;
+						break;
+					}
+				}
+				
+				if (uvcolumns[row] == uvcolumn) {
+					distinct.add(uvcolumn);
+				}
+			}
+		}
+	}
+	
+	private float getStride(float framewidth, float frameheight) {
+		if (_downsample == Downsample.Box) {
+			return getBlockSize((int)framewidth, (int)frameheight);
+		}
+		
+		if (framewidth >= frameheight) {
+			return Math.max(Math.min(framewidth / _width, frameheight / _height), 1.0f);
+		}
+
+		return Math.max(Math.min(frameheight / _width, framewidth / _height), 1.0f);
+	}
+	
+	private int getBlockSize(int framewidth, int frameheight) {
+		if (framewidth >= frameheight) {
+			return Math.max(Math.min(
+				(framewidth + _width - 1) / _width, (frameheight + _height - 1) / _height), 1);
+		}
+		
+		return Math.max(Math.min(
+			(frameheight + _width - 1) / _width, (framewidth + _height - 1) / _height), 1);
+	}
+}
@@ -0,0 +1,410 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes animated PNG images, either of palette indices or of true colors.
+ *
+ * Each frame after the first one only covers the rectangle that changed since the previous frame.
+ * The previous frame is left in place, so the decoded animation is identical to full frames. Each
+ * encoder has its own deflater, so frames compress in parallel when several encoders are in use.
+ * @param <T>	Type of frame buffer
+ */
+public abstract class ApngWriter<T> implements IAnimationWriter<T> {
+	private static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+	private static final int COLOR_TYPE_TRUECOLOR = 2, COLOR_TYPE_INDEXED = 3;
+
+	/**
+	 * Leave the frame in place when the next one is drawn.
+	 */
+	private static final int DISPOSE_NONE = 0;
+
+	/**
+	 * Replace the region, or draw it over the previous frame so transparent pixels are unchanged.
+	 */
+	private static final int BLEND_SOURCE = 0, BLEND_OVER = 1;
+
+	private static final int FILTER_NONE = 0, FILTER_SUB = 1;
+
+	/**
+	 * Size of the chunk length, type and CRC.
+	 */
+	private static final int CHUNK_OVERHEAD = 12;
+
+	protected final OutputStream _os;
+	protected final int _width, _height;
+
+	/**
+	 * Bits per sample and bytes per pixel, rounded up to 1.
+	 */
+	protected final int _bitdepth, _bytesperpixel;
+
+	/**
+	 * Checksums the header chunks.
+	 */
+	private final CRC32 _crc = new CRC32();
+
+	/**
+	 * @param os			Stream to write to
+	 * @param width			Width of frames
+	 * @param height		Height of frames
+	 * @param framecount	Number of frames that will be written
+	 * @param colortype		PNG color type
+	 * @param bitdepth		Number of bits per sample
+	 * @param palette		RGB palette entries, or null
+	 * @param alpha			Alpha of the palette entries, or null
+	 */
+	private ApngWriter(
+			OutputStream os, int width, int height, int framecount,
+			int colortype, int bitdepth, byte[] palette, byte[] alpha) throws IOException {
+		_os = os;
+		_width = width;
+		_height = height;
+		_bitdepth = bitdepth;
+		_bytesperpixel = colortype == COLOR_TYPE_TRUECOLOR ? 3 : 1;
+
+		_os.write(SIGNATURE);
+
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = (byte)bitdepth;
+		header[9] = (byte)colortype;
+		writeChunk("IHDR", header, header.length);
+
+		// Animation control with the number of frames, which loops forever
+		byte[] control = new byte[8];
+		putInt(control, 0, framecount);
+		putInt(control, 4, 0);
+		writeChunk("acTL", control, control.length);
+
+		if (palette != null) {
+			writeChunk("PLTE", palette, palette.length);
+		}
+
+		if (alpha != null) {
+			writeChunk("tRNS", alpha, alpha.length);
+		}
+	}
+
+	@Override
+	public void addFrame(byte[] frame) throws IOException {
+		_os.write(frame);
+	}
+
+	@Override
+	public void finish() throws IOException {
+		writeChunk("IEND", new byte[0], 0);
+		_os.flush();
+	}
+
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+		byte[] header = new byte[8];
+		putInt(header, 0, length);
+		for (int i = 0; i < 4; i++) {
+			header[4 + i] = (byte)type.charAt(i);
+		}
+
+		_crc.reset();
+		_crc.update(header, 4, 4);
+		_crc.update(data, 0, length);
+
+		byte[] crc = new byte[4];
+		putInt(crc, 0, (int)_crc.getValue());
+
+		_os.write(header);
+		_os.write(data, 0, length);
+		_os.write(crc);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte)(value >> 24);
+		buffer[offset + 1] = (byte)(value >> 16);
+		buffer[offset + 2] = (byte)(value >> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+
+	private static void putShort(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte)(value >> 8);
+		buffer[offset + 1] = (byte)value;
+	}
+
+	/**
+	 * Writes frames of palette indices, using a spare palette entry for unchanged pixels if one exists.
+	 */
+	public static class Indexed extends ApngWriter<byte[]> {
+		/**
+		 * Index used for unchanged pixels, or -1 if the palette has no spare entry.
+		 */
+		private final int _transparent;
+
+		/**
+		 * @param os			Stream to write to
+		 * @param width			Width of frames
+		 * @param height		Height of frames
+		 * @param framecount	Number of frames that will be written
+		 * @param colors		Palette as ABGR colors, up to 256 of them
+		 */
+		public Indexed(OutputStream os, int width, int height, int framecount, int[] colors) throws IOException {
+			super(os, width, height, framecount, COLOR_TYPE_INDEXED, getBitDepth(colors),
+				getPalette(colors), getAlpha(colors));
+			_transparent = colors.length < 256 ? colors.length : -1;
+		}
+
+		@Override
+		public IFrameEncoder<byte[]> createEncoder() {
+			return new Encoder();
+		}
+
+		/**
+		 * @return	The number of bits per index, including the spare entry.
+		 */
+		private static int getBitDepth(int[] colors) {
+			if (colors.length > 256) {
+				throw new IllegalArgumentException("Indexed PNG supports up to 256 colors");
+			}
+
+			final int count = Math.min(colors.length + 1, 256);
+			return count <= 2 ? 1 : (count <= 4 ? 2 : (count <= 16 ? 4 : 8));
+		}
+
+		private static byte[] getPalette(int[] colors) {
+			final int count = Math.min(colors.length + 1, 256);
+			byte[] result = new byte[count * 3];
+			for (int i = 0; i < colors.length; i++) {
+				result[i * 3] = (byte)colors[i];
+				result[i * 3 + 1] = (byte)(colors[i] >> 8);
+				result[i * 3 + 2] = (byte)(colors[i] >> 16);
+			}
+
+			return result;
+		}
+
+		/**
+		 * @return	Opaque colors followed by the transparent spare entry, or null if there's no spare entry.
+		 */
+		private static byte[] getAlpha(int[] colors) {
+			if (colors.length >= 256) {
+				return null;
+			}
+
+			byte[] result = new byte[colors.length + 1];
+			Arrays.fill(result, 0, colors.length, (byte)0xff);
+			return result;
+		}
+
+		private class Encoder extends FrameEncoder {
+			@Override
+			protected boolean findRegion(byte[] frame, byte[] previous, int[] region) {
+				ChangedRegion.find(frame, previous, _width, _height, region);
+				return _transparent >= 0;
+			}
+
+			@Override
+			protected int filter(byte[] frame, byte[] previous, int[] region, byte[] output) {
+				final int left = region[ChangedRegion.LEFT], right = region[ChangedRegion.RIGHT],
+						  rowbytes = ((right - left) * _bitdepth + 7) >> 3,
+						  pixelsperbyte = 8 / _bitdepth;
+				int o = 0;
+
+				for (int y = region[ChangedRegion.TOP]; y < region[ChangedRegion.BOTTOM]; y++) {
+					output[o++] = FILTER_NONE;
+
+					// Pack the pixels with the leftmost one in the most significant bits
+					Arrays.fill(output, o, o + rowbytes, (byte)0);
+					for (int x = left, yi = y * _width, i = 0; x < right; x++, i++) {
+						int pixel = frame[yi + x] & 0xff;
+						if (previous != null && frame[yi + x] == previous[yi + x]) {
+							pixel = _transparent;
+						}
+
+						final int shift = 8 - _bitdepth * (i % pixelsperbyte + 1);
+						output[o + i / pixelsperbyte] |= pixel << shift;
+					}
+
+					o += rowbytes;
+				}
+
+				return o;
+			}
+		}
+	}
+
+	/**
+	 * Writes frames of 24-bit colors, which keeps every color exactly.
+	 */
+	public static class Truecolor extends ApngWriter<int[]> {
+		/**
+		 * @param os			Stream to write to
+		 * @param width			Width of frames
+		 * @param height		Height of frames
+		 * @param framecount	Number of frames that will be written
+		 */
+		public Truecolor(OutputStream os, int width, int height, int framecount) throws IOException {
+			super(os, width, height, framecount, COLOR_TYPE_TRUECOLOR, 8, null, null);
+		}
+
+		@Override
+		public IFrameEncoder<int[]> createEncoder() {
+			return new Encoder();
+		}
+
+		private class Encoder extends FrameEncoder {
+			@Override
+			protected boolean findRegion(int[] frame, int[] previous, int[] region) {
+				ChangedRegion.find(frame, previous, _width, _height, region);
+				return false;
+			}
+
+			@Override
+			protected int filter(int[] frame, int[] previous, int[] region, byte[] output) {
+				final int left = region[ChangedRegion.LEFT], right = region[ChangedRegion.RIGHT];
+				int o = 0;
+
+				for (int y = region[ChangedRegion.TOP]; y < region[ChangedRegion.BOTTOM]; y++) {
+					// Store the difference to the pixel on the left, which is zero within flat areas
+					output[o++] = FILTER_SUB;
+
+					int pr = 0, pg = 0, pb = 0;
+					for (int x = left, yi = y * _width; x < right; x++) {
+						final int color = frame[yi + x],
+								  r = color & 0xff,
+								  g = (color >> 8) & 0xff,
+								  b = (color >> 16) & 0xff;
+
+						output[o++] = (byte)(r - pr);
+						output[o++] = (byte)(g - pg);
+						output[o++] = (byte)(b - pb);
+						pr = r;
+						pg = g;
+						pb = b;
+					}
+				}
+
+				return o;
+			}
+		}
+	}
+
+	/**
+	 * Compresses frames, each encoder must only be used by one thread at a time.
+	 */
+	protected abstract class FrameEncoder implements IFrameEncoder<T> {
+		private final Deflater _deflater = new Deflater();
+		private final CRC32 _crc = new CRC32();
+
+		/**
+		 * Changed rectangle of a frame.
+		 */
+		private final int[] _region = new int[4];
+
+		/**
+		 * Filtered scanlines, and the chunk of compressed data.
+		 */
+		private byte[] _scanlines = null, _chunk = new byte[4096];
+
+		@Override
+		public void release() {
+			_deflater.end();
+		}
+
+		@Override
+		public void encode(OutputStream os, int sequence, T frame, T previous, int delay) throws IOException {
+			boolean blend = false;
+			if (previous != null) {
+				blend = findRegion(frame, previous, _region);
+			}
+			else {
+				_region[ChangedRegion.LEFT] = 0;
+				_region[ChangedRegion.TOP] = 0;
+				_region[ChangedRegion.RIGHT] = _width;
+				_region[ChangedRegion.BOTTOM] = _height;
+			}
+
+			final int width = _region[ChangedRegion.RIGHT] - _region[ChangedRegion.LEFT],
+					  height = _region[ChangedRegion.BOTTOM] - _region[ChangedRegion.TOP];
+
+			// Frame control, each frame uses two sequence numbers except the first that is the default image
+			final int framesequence = sequence > 0 ? sequence * 2 - 1 : 0;
+			final byte[] control = _chunk;
+			putInt(control, 8, framesequence);
+			putInt(control, 12, width);
+			putInt(control, 16, height);
+			putInt(control, 20, _region[ChangedRegion.LEFT]);
+			putInt(control, 24, _region[ChangedRegion.TOP]);
+			putShort(control, 28, delay);
+			putShort(control, 30, 100);
+			control[32] = DISPOSE_NONE;
+			control[33] = (byte)(blend ? BLEND_OVER : BLEND_SOURCE);
+			writeChunk(os, "fcTL", 26);
+
+			// Filter and compress the scanlines of the region
+			final int size = height * (1 + ((width * _bitdepth + 7) >> 3) * _bytesperpixel);
+			if (_scanlines == null || _scanlines.length < size) {
+				_scanlines = new byte[size];
+			}
+
+			final int length = filter(frame, blend ? previous : null, _region, _scanlines);
+			final int offset = sequence > 0 ? 4 : 0;
+
+			_deflater.reset();
+			_deflater.setInput(_scanlines, 0, length);
+			_deflater.finish();
+
+			int datalength = offset;
+			while (!_deflater.finished()) {
+				if (8 + datalength == _chunk.length) {
+					_chunk = Arrays.copyOf(_chunk, _chunk.length * 2);
+				}
+
+				datalength += _deflater.deflate(_chunk, 8 + datalength, _chunk.length - 8 - datalength);
+			}
+
+			// The first frame is the default image, the others are frame data with a sequence number
+			if (sequence > 0) {
+				putInt(_chunk, 8, framesequence + 1);
+				writeChunk(os, "fdAT", datalength);
+			}
+			else {
+				writeChunk(os, "IDAT", datalength);
+			}
+		}
+
+		/**
+		 * Finds the changed rectangle of a frame.
+		 * @return	True if unchanged pixels are transparent and the region is drawn over the previous frame.
+		 */
+		protected abstract boolean findRegion(T frame, T previous, int[] region);
+
+		/**
+		 * Writes the filtered scanlines of a rectangle.
+		 * @param previous	The previous frame if unchanged pixels are transparent, otherwise null
+		 * @return			The number of bytes written.
+		 */
+		protected abstract int filter(T frame, T previous, int[] region, byte[] output);
+
+		/**
+		 * Writes a chunk whose data has been placed after room for its length and type.
+		 */
+		private void writeChunk(OutputStream os, String type, int length) throws IOException {
+			if (_chunk.length < length + CHUNK_OVERHEAD) {
+				_chunk = Arrays.copyOf(_chunk, length + CHUNK_OVERHEAD);
+			}
+
+			putInt(_chunk, 0, length);
+			for (int i = 0; i < 4; i++) {
+				_chunk[4 + i] = (byte)type.charAt(i);
+			}
+
+			_crc.reset();
+			_crc.update(_chunk, 4, length + 4);
+			putInt(_chunk, 8 + length, (int)_crc.getValue());
+			os.write(_chunk, 0, length + CHUNK_OVERHEAD);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package se.embargo.retroboy.graphic;
+
+/**
+ * Tracks the Otsu threshold over a sequence of frames.
+ */
+public class AutoExposure {
+	/**
+	 * Weight of the accumulated histogram when a new frame is added.
+	 */
+	private final double _decay;
+
+	/**
+	 * Only every n'th row contributes to the histogram.
+	 */
+	private final int _rowstep;
+
+	/**
+	 * Exponentially decayed histogram, normalized to sum to 1.
+	 */
+	private final double[] _histogram = new double[256];
+	private boolean _empty = true;
+	private int _threshold = 128;
+
+	/**
+	 * Calculates the threshold of each frame separately, e.g. for still images.
+	 */
+	public AutoExposure() {
+		this(0, 1);
+	}
+
+	/**
+	 * @param decay		Weight of the previous frames in [0, 1), where 0 disables the smoothing
+	 * @param rowstep	Sample only every n'th row when building histograms
+	 */
+	public AutoExposure(double decay, int rowstep) {
+		if (decay < 0 || decay >= 1 || rowstep < 1) {
+			throw new IllegalArgumentException("Decay must be in [0, 1) and row step at least 1");
+		}
+
+		_decay = decay;
+		_rowstep = rowstep;
+	}
+
+	/**
+	 * @return	The number of rows to step between rows that contribute to the histogram.
+	 */
+	public int getRowStep() {
+		return _rowstep;
+	}
+
+	/**
+	 * @return	The current threshold.
+	 */
+	public synchronized int getThreshold() {
+		return _threshold;
+	}
+
+	/**
+	 * Adds the histogram of a new frame and updates the threshold.
+	 * @param histogram	Luminance histogram of the sampled rows
+	 * @return			The Otsu threshold of the accumulated histogram
+	 */
+	public synchronized int update(int[] histogram) {
+		long count = 0;
+		for (int i = 0; i < 256; i++) {
+			count += histogram[i];
+		}
+
+		if (count == 0) {
+			return _threshold;
+		}
+
+		// Decay the previous frames and add the new one
+		final double weight = _empty ? 1.0 : 1.0 - _decay,
+					 decay = 1.0 - weight,
+					 scale = weight / count;
+		double total = 0;
+
+		for (int i = 0; i < 256; i++) {
+			_histogram[i] = _histogram[i] * decay + histogram[i] * scale;
+			total += i * _histogram[i];
+		}
+
+		_empty = false;
+
+		// Find the threshold that maximizes the between class variance
+		double wb = 0, sumb = 0, max = 0;
+		int threshold = 0;
+
+		for (int i = 0; i < 256; i++) {
+			wb += _histogram[i];
+			final double wf = 1.0 - wb;
+			if (wb <= 0) {
+				continue;
+			}
+
+			if (wf <= 1e-12) {
+				break;
+			}
+
+			sumb += i * _histogram[i];
+			final double mb = sumb / wb,
+						 mf = (total - sumb) / wf,
+						 variance = wb * wf * (mb - mf) * (mb - mf);
+
+			if (variance > max) {
+				max = variance;
+				threshold = i;
+			}
+		}
+
+		_threshold = threshold;
+		return threshold;
+	}
+}
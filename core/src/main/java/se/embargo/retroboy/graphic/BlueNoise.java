@@ -0,0 +1,207 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import se.embargo.retroboy.cache.ICacheStorage;
+import se.embargo.retroboy.cache.TableFile;
+
+/**
+ * Blue noise threshold matrices generated with the void-and-cluster method.
+ * @link	http://cv.ulichney.com/papers/1993-void-cluster.pdf
+ */
+public class BlueNoise {
+	private static final Logger LOG = Logger.getLogger(BlueNoise.class.getName());
+
+	/**
+	 * Version number for the cache files
+	 */
+	private static final int CACHE_VERSION_NUMBER = 1;
+
+	/**
+	 * Standard deviation of the filter used to find clusters and voids.
+	 */
+	private static final double SIGMA = 1.5;
+
+	/**
+	 * Seed of the initial pattern, so the matrix is the same wherever it's generated.
+	 */
+	private static final long SEED = 0x5eedL;
+
+	/**
+	 * Loads a cached blue noise matrix, or generates and caches it.
+	 * @param storage	Storage for cached matrices
+	 * @param size		Length of matrix side, must be a power of two
+	 * @param levels	Number of threshold levels
+	 * @return			A dither matrix
+	 */
+	public static DitherMatrix create(ICacheStorage storage, int size, int levels) {
+		final String filename = getFilename(size);
+		int[] ranks = new int[size * size];
+
+		if (!TableFile.read(storage, filename, CACHE_VERSION_NUMBER, ranks)) {
+			long ts = System.nanoTime();
+			ranks = generate(size);
+			LOG.info("Generated blue noise: " + ((double)(System.nanoTime() - ts) / 1000000000d) + "s");
+
+			try {
+				TableFile.write(storage, filename, CACHE_VERSION_NUMBER, ranks);
+			}
+			catch (IOException e) {
+				LOG.warning("Failed to write cache file " + filename + ": " + e);
+			}
+		}
+
+		final int[] thresholds = new int[ranks.length];
+		for (int i = 0; i < ranks.length; i++) {
+			thresholds[i] = (int)((long)ranks[i] * levels / ranks.length);
+		}
+
+		return new DitherMatrix(size, levels, thresholds);
+	}
+
+	/**
+	 * @param size	Length of matrix side
+	 * @return		The name of the cache file
+	 */
+	public static String getFilename(int size) {
+		return "bluenoise-" + size + ".bin";
+	}
+
+	/**
+	 * Ranks each element of a matrix so that the elements below any rank form a blue noise pattern.
+	 * @param size	Length of matrix side, must be a power of two
+	 * @return		The rank of each element in row major order
+	 */
+	public static int[] generate(int size) {
+		if (size < 2 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("Matrix side must be a power of two");
+		}
+
+		final int length = size * size;
+		final Pattern pattern = new Pattern(size);
+
+		// Start with randomly placed minority pixels
+		final Random random = new Random(SEED);
+		final int ones = length / 10;
+		for (int count = 0; count < ones; ) {
+			final int i = random.nextInt(length);
+			if (!pattern.bits[i]) {
+				pattern.toggle(i);
+				count++;
+			}
+		}
+
+		// Move pixels from the tightest cluster into the largest void until they stop moving
+		for (int it = 0; it < length; it++) {
+			final int cluster = pattern.findCluster();
+			pattern.toggle(cluster);
+
+			final int vacancy = pattern.findVoid();
+			pattern.toggle(vacancy);
+
+			if (vacancy == cluster) {
+				break;
+			}
+		}
+
+		final int[] ranks = new int[length];
+		final Pattern prototype = new Pattern(pattern);
+
+		// Rank the initial pixels by removing them from the tightest cluster first
+		for (int rank = ones - 1; rank >= 0; rank--) {
+			final int cluster = pattern.findCluster();
+			pattern.toggle(cluster);
+			ranks[cluster] = rank;
+		}
+
+		// Rank the remaining pixels by filling the largest void first
+		for (int rank = ones; rank < length; rank++) {
+			final int vacancy = prototype.findVoid();
+			prototype.toggle(vacancy);
+			ranks[vacancy] = rank;
+		}
+
+		return ranks;
+	}
+
+	/**
+	 * Binary pattern together with its density as seen through a gaussian filter that wraps around the edges.
+	 */
+	private static class Pattern {
+		public final int size;
+		public final boolean[] bits;
+		public final double[] energy;
+		private final double[] _filter;
+
+		public Pattern(int size) {
+			this.size = size;
+			bits = new boolean[size * size];
+			energy = new double[size * size];
+			_filter = new double[size * size];
+
+			for (int y = 0; y < size; y++) {
+				final int dy = Math.min(y, size - y);
+				for (int x = 0; x < size; x++) {
+					final int dx = Math.min(x, size - x);
+					_filter[y * size + x] = StrictMath.exp(-(dx * dx + dy * dy) / (2 * SIGMA * SIGMA));
+				}
+			}
+		}
+
+		public Pattern(Pattern other) {
+			size = other.size;
+			bits = other.bits.clone();
+			energy = other.energy.clone();
+			_filter = other._filter;
+		}
+
+		/**
+		 * Flips a pixel and updates the density around it.
+		 */
+		public void toggle(int i) {
+			bits[i] = !bits[i];
+
+			final double sign = bits[i] ? 1 : -1;
+			final int mask = size - 1, px = i & mask, py = i / size;
+
+			for (int y = 0; y < size; y++) {
+				final int yi = y * size,
+						  fy = ((y - py) & mask) * size;
+
+				for (int x = 0; x < size; x++) {
+					energy[yi + x] += sign * _filter[fy + ((x - px) & mask)];
+				}
+			}
+		}
+
+		/**
+		 * @return	The set pixel with the highest density.
+		 */
+		public int findCluster() {
+			int result = -1;
+			for (int i = 0; i < bits.length; i++) {
+				if (bits[i] && (result < 0 || energy[i] > energy[result])) {
+					result = i;
+				}
+			}
+
+			return result;
+		}
+
+		/**
+		 * @return	The unset pixel with the lowest density.
+		 */
+		public int findVoid() {
+			int result = -1;
+			for (int i = 0; i < bits.length; i++) {
+				if (!bits[i] && (result < 0 || energy[i] < energy[result])) {
+					result = i;
+				}
+			}
+
+			return result;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package se.embargo.retroboy.graphic;
+
+/**
+ * Finds the rectangle of pixels that changed between two frames of an animation.
+ */
+class ChangedRegion {
+	public static final int LEFT = 0, TOP = 1, RIGHT = 2, BOTTOM = 3;
+
+	private ChangedRegion() {}
+
+	/**
+	 * Finds the changed rectangle of a frame of palette indices.
+	 * @param region	Receives the left, top, right and bottom edges, the top left pixel if nothing changed
+	 * @return			True if any pixel changed.
+	 */
+	public static boolean find(byte[] frame, byte[] previous, int width, int height, int[] region) {
+		int top = 0;
+		while (top < height && isRowEqual(frame, previous, width, top)) {
+			top++;
+		}
+
+		if (top == height) {
+			// Nothing changed, but a frame still has to cover a pixel
+			setRegion(region, 0, 0, 1, 1);
+			return false;
+		}
+
+		int bottom = height;
+		while (bottom > top + 1 && isRowEqual(frame, previous, width, bottom - 1)) {
+			bottom--;
+		}
+
+		int left = width, right = 0;
+		for (int y = top; y < bottom; y++) {
+			final int yi = y * width;
+			for (int x = 0; x < left; x++) {
+				if (frame[yi + x] != previous[yi + x]) {
+					left = x;
+					break;
+				}
+			}
+
+			for (int x = width - 1; x >= right; x--) {
+				if (frame[yi + x] != previous[yi + x]) {
+					right = x + 1;
+					break;
+				}
+			}
+		}
+
+		setRegion(region, left, top, right, bottom);
+		return true;
+	}
+
+	/**
+	 * Finds the changed rectangle of a frame of colors.
+	 * @param region	Receives the left, top, right and bottom edges, the top left pixel if nothing changed
+	 * @return			True if any pixel changed.
+	 */
+	public static boolean find(int[] frame, int[] previous, int width, int height, int[] region) {
+		int top = 0;
+		while (top < height && isRowEqual(frame, previous, width, top)) {
+			top++;
+		}
+
+		if (top == height) {
+			setRegion(region, 0, 0, 1, 1);
+			return false;
+		}
+
+		int bottom = height;
+		while (bottom > top + 1 && isRowEqual(frame, previous, width, bottom - 1)) {
+			bottom--;
+		}
+
+		int left = width, right = 0;
+		for (int y = top; y < bottom; y++) {
+			final int yi = y * width;
+			for (int x = 0; x < left; x++) {
+				if (frame[yi + x] != previous[yi + x]) {
+					left = x;
+					break;
+				}
+			}
+
+			for (int x = width - 1; x >= right; x--) {
+				if (frame[yi + x] != previous[yi + x]) {
+					right = x + 1;
+					break;
+				}
+			}
+		}
+
+		setRegion(region, left, top, right, bottom);
+		return true;
+	}
+
+	private static void setRegion(int[] region, int left, int top, int right, int bottom) {
+		region[LEFT] = left;
+		region[TOP] = top;
+		region[RIGHT] = right;
+		region[BOTTOM] = bottom;
+	}
+
+	private static boolean isRowEqual(byte[] frame, byte[] previous, int width, int y) {
+		for (int i = y * width, last = i + width; i < last; i++) {
+			if (frame[i] != previous[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean isRowEqual(int[] frame, int[] previous, int width, int y) {
+		for (int i = y * width, last = i + width; i < last; i++) {
+			if (frame[i] != previous[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
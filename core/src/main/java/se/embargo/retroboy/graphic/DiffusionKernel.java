@@ -0,0 +1,92 @@
+package se.embargo.retroboy.graphic;
+
+/**
+ * Describes how the quantization error of a pixel is spread to its neighbours.
+ */
+public class DiffusionKernel {
+	public static final DiffusionKernel FLOYD_STEINBERG = new DiffusionKernel(3, 16,
+		0, 0, 7,
+		3, 5, 1);
+
+	public static final DiffusionKernel JARVIS_JUDICE_NINKE = new DiffusionKernel(5, 48,
+		0, 0, 0, 7, 5,
+		3, 5, 7, 5, 3,
+		1, 3, 5, 3, 1);
+
+	public static final DiffusionKernel STUCKI = new DiffusionKernel(5, 42,
+		0, 0, 0, 8, 4,
+		2, 4, 8, 4, 2,
+		1, 2, 4, 2, 1);
+
+	public static final DiffusionKernel SIERRA = new DiffusionKernel(5, 32,
+		0, 0, 0, 5, 3,
+		2, 4, 5, 4, 2,
+		0, 2, 3, 2, 0);
+
+	public static final DiffusionKernel ATKINSON = new DiffusionKernel(5, 8,
+		0, 0, 0, 1, 1,
+		0, 1, 1, 1, 0,
+		0, 0, 1, 0, 0);
+
+	/**
+	 * Column and row offset of each non-zero weight, relative to the current pixel.
+	 */
+	public final int[] dx, dy;
+
+	/**
+	 * Weight of each offset divided by the kernel divisor.
+	 */
+	public final double[] weights;
+
+	/**
+	 * Number of rows the error is spread over, including the current row.
+	 */
+	public final int height;
+
+	/**
+	 * Largest horizontal distance the error is spread.
+	 */
+	public final int reach;
+
+	/**
+	 * @param width		Number of columns in the matrix, the current pixel is in the middle of the first row
+	 * @param divisor	Divisor of the weights
+	 * @param matrix	Weights in row major order
+	 */
+	public DiffusionKernel(int width, int divisor, int... matrix) {
+		if (width % 2 != 1 || matrix.length % width != 0) {
+			throw new IllegalArgumentException("Kernel must have an odd width and whole rows");
+		}
+
+		int count = 0;
+		for (int weight : matrix) {
+			if (weight != 0) {
+				count++;
+			}
+		}
+
+		dx = new int[count];
+		dy = new int[count];
+		weights = new double[count];
+
+		int height = 1, reach = 0;
+		for (int i = 0, k = 0; i < matrix.length; i++) {
+			if (matrix[i] != 0) {
+				dx[k] = i % width - width / 2;
+				dy[k] = i / width;
+				weights[k] = (double)matrix[i] / divisor;
+
+				if (dy[k] == 0 && dx[k] <= 0) {
+					throw new IllegalArgumentException("Error can only be spread to unprocessed pixels");
+				}
+
+				height = Math.max(height, dy[k] + 1);
+				reach = Math.max(reach, Math.abs(dx[k]));
+				k++;
+			}
+		}
+
+		this.height = height;
+		this.reach = reach;
+	}
+}
@@ -0,0 +1,78 @@
+package se.embargo.retroboy.graphic;
+
+/**
+ * Threshold matrix for ordered dithering, tiled over the image.
+ */
+public class DitherMatrix {
+	/**
+	 * Number of columns the rows of small matrices are tiled to.
+	 */
+	public static final int UNROLL = 8;
+
+	/**
+	 * Thresholds in row major order, in the range [0, levels).
+	 */
+	public final int[] thresholds;
+
+	/**
+	 * Length of matrix side, always a power of two.
+	 */
+	public final int size;
+
+	/**
+	 * Mask that wraps a coordinate into the matrix.
+	 */
+	public final int mask;
+
+	/**
+	 * Number of bits to shift a wrapped row to get the offset of its thresholds.
+	 */
+	public final int shift;
+
+	/**
+	 * Number of distinct threshold levels.
+	 */
+	public final int levels;
+
+	/**
+	 * Thresholds of each row repeated to UNROLL columns, or null if the matrix is wider than that.
+	 */
+	public final int[] tiled;
+
+	/**
+	 * @param size			Length of matrix side
+	 * @param levels		Number of threshold levels
+	 * @param thresholds	Thresholds in row major order
+	 */
+	public DitherMatrix(int size, int levels, int[] thresholds) {
+		if (size < 1 || (size & (size - 1)) != 0 || thresholds.length != size * size) {
+			throw new IllegalArgumentException("Matrix must be square with a power of two side");
+		}
+
+		this.thresholds = thresholds;
+		this.size = size;
+		this.mask = size - 1;
+		this.shift = Integer.numberOfTrailingZeros(size);
+		this.levels = levels;
+
+		if (size <= UNROLL) {
+			tiled = new int[size * UNROLL];
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < UNROLL; x++) {
+					tiled[y * UNROLL + x] = thresholds[y * size + (x & mask)];
+				}
+			}
+		}
+		else {
+			tiled = null;
+		}
+	}
+
+	/**
+	 * @param size			Length of matrix side
+	 * @param thresholds	Thresholds in row major order, with one level per element
+	 */
+	public DitherMatrix(int size, int[] thresholds) {
+		this(size, thresholds.length, thresholds);
+	}
+}
@@ -0,0 +1,232 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import se.embargo.retroboy.graphic.IAnimationWriter.IFrameEncoder;
+
+/**
+ * Writes animated GIF images from frames of palette indices.
+ *
+ * In delta mode each frame only covers the rectangle that changed since the previous frame, and
+ * pixels within it that didn't change are made transparent if the color table has a spare entry.
+ * The previous frame is left in place, so the decoded animation is identical to full frames.
+ *
+ * Frames can be compressed concurrently by separate encoders into buffers that are then written
+ * in order, since a delta only depends on the indices of the previous frame.
+ */
+public class GifWriter implements IAnimationWriter<byte[]> {
+	/**
+	 * Leave the frame in place when the next one is drawn.
+	 */
+	private static final int DISPOSAL_NONE = 1;
+
+	private final OutputStream _os;
+	private final int _width, _height;
+	private final boolean _delta;
+
+	/**
+	 * Number of bits per pixel in the LZW data.
+	 */
+	private final int _mincodesize;
+
+	/**
+	 * Index used for unchanged pixels, or -1 if the color table has no spare entry.
+	 */
+	private final int _transparent;
+
+	/**
+	 * Encoder for frames added in order.
+	 */
+	private final Encoder _encoder = new Encoder();
+
+	/**
+	 * The previous frame added in order.
+	 */
+	private byte[] _previous = null;
+	private int _framecount = 0;
+
+	/**
+	 * Writes the header and color table.
+	 * @param os		Stream to write to
+	 * @param width		Width of frames
+	 * @param height	Height of frames
+	 * @param colors	Palette as ABGR colors, up to 256 of them
+	 * @param delta		Only write the changed part of each frame
+	 */
+	public GifWriter(OutputStream os, int width, int height, int[] colors, boolean delta) throws IOException {
+		if (colors.length > 256) {
+			throw new IllegalArgumentException("GIF supports up to 256 colors");
+		}
+
+		_os = os;
+		_width = width;
+		_height = height;
+		_delta = delta;
+
+		// The color table size is a power of two, reserve an entry for transparency if it fits
+		final int count = delta ? Math.min(colors.length + 1, 256) : colors.length;
+		int tablebits = 1;
+		while ((1 << tablebits) < count) {
+			tablebits++;
+		}
+
+		_mincodesize = Math.max(tablebits, 2);
+		_transparent = (delta && colors.length < 256) ? colors.length : -1;
+
+		// Header and logical screen descriptor with a global color table
+		writeAscii("GIF89a");
+		writeShort(width);
+		writeShort(height);
+		_os.write(0x80 | 0x70 | (tablebits - 1));
+		_os.write(0);
+		_os.write(0);
+
+		for (int i = 0, size = 1 << tablebits; i < size; i++) {
+			final int color = i < colors.length ? colors[i] : 0;
+			_os.write(color & 0xff);
+			_os.write((color >> 8) & 0xff);
+			_os.write((color >> 16) & 0xff);
+		}
+
+		// Netscape extension that loops the animation forever
+		_os.write(0x21);
+		_os.write(0xff);
+		_os.write(11);
+		writeAscii("NETSCAPE2.0");
+		_os.write(3);
+		_os.write(1);
+		writeShort(0);
+		_os.write(0);
+	}
+
+	/**
+	 * Writes a frame.
+	 * @param indices	Palette index of each pixel in row major order
+	 * @param delay		Time to show the frame in 1/100 seconds
+	 */
+	public void addFrame(byte[] indices, int delay) throws IOException {
+		_encoder.encode(_os, _framecount++, indices, _previous, delay);
+
+		if (_delta) {
+			if (_previous == null) {
+				_previous = new byte[indices.length];
+			}
+
+			System.arraycopy(indices, 0, _previous, 0, indices.length);
+		}
+	}
+
+	@Override
+	public void addFrame(byte[] frame) throws IOException {
+		_os.write(frame);
+	}
+
+	@Override
+	public Encoder createEncoder() {
+		return new Encoder();
+	}
+
+	@Override
+	public void finish() throws IOException {
+		_os.write(0x3b);
+		_os.flush();
+	}
+
+	private static void writeShort(OutputStream os, int value) throws IOException {
+		os.write(value & 0xff);
+		os.write((value >> 8) & 0xff);
+	}
+
+	private void writeShort(int value) throws IOException {
+		writeShort(_os, value);
+	}
+
+	private void writeAscii(String value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			_os.write(value.charAt(i));
+		}
+	}
+
+	/**
+	 * Compresses frames, each encoder must only be used by one thread at a time.
+	 */
+	public class Encoder implements IFrameEncoder<byte[]> {
+		private final LzwEncoder _lzw = new LzwEncoder();
+
+		/**
+		 * Changed rectangle of a frame.
+		 */
+		private final int[] _region = new int[4];
+
+		/**
+		 * Buffer for the changed pixels of a frame.
+		 */
+		private byte[] _pixels = null;
+
+		private Encoder() {}
+
+		@Override
+		public void release() {}
+
+		@Override
+		public void encode(OutputStream os, int sequence, byte[] indices, byte[] previous, int delay) throws IOException {
+			int left = 0, top = 0, right = _width, bottom = _height;
+			boolean transparent = false;
+
+			if (_delta && previous != null) {
+				// Find the rectangle that changed
+				ChangedRegion.find(indices, previous, _width, _height, _region);
+				left = _region[ChangedRegion.LEFT];
+				top = _region[ChangedRegion.TOP];
+				right = _region[ChangedRegion.RIGHT];
+				bottom = _region[ChangedRegion.BOTTOM];
+				transparent = _transparent >= 0;
+			}
+
+			// Copy the pixels of the rectangle, with unchanged ones made transparent
+			final int width = right - left, height = bottom - top, count = width * height;
+			byte[] pixels = indices;
+
+			if (count != indices.length || transparent) {
+				if (_pixels == null || _pixels.length < count) {
+					_pixels = new byte[count];
+				}
+
+				pixels = _pixels;
+				for (int y = 0, o = 0; y < height; y++) {
+					final int yi = (y + top) * _width + left;
+					if (transparent) {
+						for (int x = 0; x < width; x++, o++) {
+							final byte pixel = indices[yi + x];
+							pixels[o] = pixel != previous[yi + x] ? pixel : (byte)_transparent;
+						}
+					}
+					else {
+						System.arraycopy(indices, yi, pixels, o, width);
+						o += width;
+					}
+				}
+			}
+
+			// Graphic control extension
+			os.write(0x21);
+			os.write(0xf9);
+			os.write(4);
+			os.write((_delta ? DISPOSAL_NONE << 2 : 0) | (transparent ? 1 : 0));
+			writeShort(os, delay);
+			os.write(transparent ? _transparent : 0);
+			os.write(0);
+
+			// Image descriptor without a local color table
+			os.write(0x2c);
+			writeShort(os, left);
+			writeShort(os, top);
+			writeShort(os, width);
+			writeShort(os, height);
+			os.write(0);
+
+			_lzw.encode(os, pixels, count, _mincodesize);
+		}
+	}
+}
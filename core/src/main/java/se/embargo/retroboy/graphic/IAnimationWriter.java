@@ -0,0 +1,47 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes animated images. Frames are compressed by encoders, possibly on several threads at once,
+ * and then written in order.
+ * @param <T>	Type of frame buffer, e.g. palette indices or colors
+ */
+public interface IAnimationWriter<T> {
+	/**
+	 * @return	A new encoder, for compressing frames on another thread.
+	 */
+	public IFrameEncoder<T> createEncoder();
+
+	/**
+	 * Writes a frame compressed by an encoder.
+	 * @param frame		Data written by the encoder
+	 */
+	public void addFrame(byte[] frame) throws IOException;
+
+	/**
+	 * Writes the trailer, the stream is left open.
+	 */
+	public void finish() throws IOException;
+
+	/**
+	 * Compresses frames, each encoder must only be used by one thread at a time.
+	 */
+	public interface IFrameEncoder<T> {
+		/**
+		 * Writes a frame.
+		 * @param os		Stream to write to
+		 * @param sequence	Position of the frame in the animation, starting at 0
+		 * @param frame		Pixels of the frame in row major order
+		 * @param previous	Pixels of the previous frame, or null for the first frame
+		 * @param delay		Time to show the frame in 1/100 seconds
+		 */
+		public void encode(OutputStream os, int sequence, T frame, T previous, int delay) throws IOException;
+
+		/**
+		 * Frees native resources, the encoder can't be used afterwards.
+		 */
+		public void release();
+	}
+}
@@ -0,0 +1,139 @@
+package se.embargo.retroboy.graphic;
+
+import se.embargo.core.graphic.color.IIndexedPalette;
+import se.embargo.retroboy.color.ExactColorIndex;
+
+/**
+ * Packs images into palette indices with as few bits per pixel as the palette needs, e.g. 2 bits
+ * for the Game Boy and 4 bits for the Commodore 64.
+ */
+public class IndexPacker {
+	/**
+	 * Maximum number of colors, so that indices fit in a byte.
+	 */
+	public static final int MAX_COLORS = 256;
+
+	private final IIndexedPalette _palette;
+
+	/**
+	 * Colors of the palette when the packer was created.
+	 */
+	private final int[] _colors;
+
+	/**
+	 * Finds the index of each color, since the palette may only approximate it.
+	 */
+	private final ExactColorIndex _index;
+
+	/**
+	 * Number of bits per pixel, 1, 2, 4 or 8.
+	 */
+	private final int _bits;
+
+	/**
+	 * @param palette	Fixed palette that the images use
+	 */
+	public IndexPacker(IIndexedPalette palette) {
+		if (!isSupported(palette)) {
+			throw new IllegalArgumentException("Index packing supports up to " + MAX_COLORS + " colors");
+		}
+
+		_palette = palette;
+		_colors = palette.getColors().clone();
+		_index = new ExactColorIndex(_colors);
+		_bits = _colors.length <= 2 ? 1 : (_colors.length <= 4 ? 2 : (_colors.length <= 16 ? 4 : 8));
+	}
+
+	/**
+	 * @return	True if the palette is small enough to be packed.
+	 */
+	public static boolean isSupported(IIndexedPalette palette) {
+		return palette.getColors().length <= MAX_COLORS;
+	}
+
+	/**
+	 * @return	The number of bits per pixel.
+	 */
+	public int getBits() {
+		return _bits;
+	}
+
+	/**
+	 * @return	The colors that the indices refer to.
+	 */
+	public int[] getColors() {
+		return _colors;
+	}
+
+	/**
+	 * @return	The number of bytes needed to pack the given number of pixels.
+	 */
+	public int getPackedSize(int pixelcount) {
+		return (pixelcount * _bits + 7) >> 3;
+	}
+
+	/**
+	 * @return	The palette index of a color, or of the nearest palette color if it's not in the palette.
+	 */
+	public int getIndex(int color) {
+		final int index = _index.getIndex(color);
+		if (index >= 0) {
+			return index;
+		}
+
+		return Math.max(0, _index.getIndex(_palette.getNearestColor(color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff)));
+	}
+
+	/**
+	 * Packs the palette index of each pixel, starting with the least significant bits of each byte.
+	 */
+	public void pack(int[] image, int pixelcount, byte[] output) {
+		int value = 0, bit = 0, o = 0;
+		for (int i = 0; i < pixelcount; i++) {
+			value |= getIndex(image[i]) << bit;
+			bit += _bits;
+
+			if (bit == 8) {
+				output[o++] = (byte)value;
+				value = 0;
+				bit = 0;
+			}
+		}
+
+		if (bit > 0) {
+			output[o] = (byte)value;
+		}
+	}
+
+	/**
+	 * Unpacks indices into the colors they refer to.
+	 */
+	public void unpack(byte[] input, int[] image, int pixelcount) {
+		final int mask = (1 << _bits) - 1;
+		for (int i = 0, bit = 0, o = 0; i < pixelcount; i++) {
+			image[i] = _colors[(input[o] >> bit) & mask];
+			bit += _bits;
+
+			if (bit == 8) {
+				bit = 0;
+				o++;
+			}
+		}
+	}
+
+	/**
+	 * Unpacks indices into one byte per pixel.
+	 */
+	public void unpack(byte[] input, byte[] indices, int pixelcount) {
+		final int mask = (1 << _bits) - 1;
+		for (int i = 0, bit = 0, o = 0; i < pixelcount; i++) {
+			indices[i] = (byte)((input[o] >> bit) & mask);
+			bit += _bits;
+
+			if (bit == 8) {
+				bit = 0;
+				o++;
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses palette indices into GIF image data, using variable length LZW codes of up to 12 bits.
+ *
+ * The string table is an open addressing hash table in the manner of the Unix compress utility,
+ * so an encoder only needs a few tens of kilobytes and can be reused between images.
+ */
+public class LzwEncoder {
+	private static final int MAX_BITS = 12;
+	private static final int MAX_CODES = 1 << MAX_BITS;
+
+	/**
+	 * Size of the hash table, a prime about 20% larger than the number of codes.
+	 */
+	private static final int HASH_SIZE = 5003;
+
+	/**
+	 * Number of bits to shift a pixel before hashing it with the prefix code.
+	 */
+	private static final int HASH_SHIFT = 4;
+
+	/**
+	 * Key of each hash table entry, the pixel and prefix code, or -1 if unused.
+	 */
+	private final int[] _keys = new int[HASH_SIZE];
+
+	/**
+	 * Code of each hash table entry.
+	 */
+	private final int[] _codes = new int[HASH_SIZE];
+
+	/**
+	 * Data sub-block being filled, prefixed by its length.
+	 */
+	private final byte[] _block = new byte[256];
+	private int _blocklength;
+
+	/**
+	 * Bits waiting to be written.
+	 */
+	private int _accumulator, _accumulated;
+
+	private OutputStream _os;
+	private int _codesize, _clearcode, _nextcode;
+
+	/**
+	 * Writes the image data for a number of pixels.
+	 * @param os			Stream to write to
+	 * @param pixels		Palette indices
+	 * @param count			Number of pixels
+	 * @param mincodesize	Number of bits per pixel, at least 2
+	 */
+	public void encode(OutputStream os, byte[] pixels, int count, int mincodesize) throws IOException {
+		_os = os;
+		_os.write(mincodesize);
+		_blocklength = 0;
+		_accumulator = 0;
+		_accumulated = 0;
+
+		_clearcode = 1 << mincodesize;
+		clear(mincodesize);
+		write(_clearcode);
+
+		if (count > 0) {
+			int prefix = pixels[0] & 0xff;
+
+			pixels:
+			for (int i = 1; i < count; i++) {
+				final int pixel = pixels[i] & 0xff,
+						  key = (pixel << MAX_BITS) | prefix;
+				int h = (pixel << HASH_SHIFT) ^ prefix;
+
+				// Extend the current string if it's in the table
+				if (_keys[h] == key) {
+					prefix = _codes[h];
+					continue;
+				}
+
+				if (_keys[h] >= 0) {
+					final int displacement = h == 0 ? 1 : HASH_SIZE - h;
+					do {
+						h -= displacement;
+						if (h < 0) {
+							h += HASH_SIZE;
+						}
+
+						if (_keys[h] == key) {
+							prefix = _codes[h];
+							continue pixels;
+						}
+					} while (_keys[h] >= 0);
+				}
+
+				// Emit the longest known string and add its extension to the table
+				write(prefix);
+				prefix = pixel;
+
+				if (_nextcode < MAX_CODES) {
+					_codes[h] = _nextcode;
+					_keys[h] = key;
+					_nextcode++;
+				}
+				else {
+					// Start over with an empty table once it's full
+					write(_clearcode);
+					clear(mincodesize);
+				}
+			}
+
+			write(prefix);
+		}
+
+		write(_clearcode + 1);
+
+		// Flush the remaining bits and terminate the sub-blocks
+		if (_accumulated > 0) {
+			append(_accumulator);
+		}
+
+		flush();
+		_os.write(0);
+		_os = null;
+	}
+
+	/**
+	 * Empties the string table, a clear code written before it still uses the old code size.
+	 */
+	private void clear(int mincodesize) {
+		Arrays.fill(_keys, -1);
+		_codesize = mincodesize + 1;
+		_nextcode = _clearcode + 2;
+	}
+
+	/**
+	 * Writes a code, and grows the code size once the next code doesn't fit.
+	 */
+	private void write(int code) throws IOException {
+		_accumulator |= code << _accumulated;
+		_accumulated += _codesize;
+
+		while (_accumulated >= 8) {
+			append(_accumulator);
+			_accumulator >>>= 8;
+			_accumulated -= 8;
+		}
+
+		if (_nextcode > (1 << _codesize) - 1 && _codesize < MAX_BITS) {
+			_codesize++;
+		}
+	}
+
+	private void append(int value) throws IOException {
+		_block[++_blocklength] = (byte)value;
+		if (_blocklength == 255) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+		if (_blocklength > 0) {
+			_block[0] = (byte)_blocklength;
+			_os.write(_block, 0, _blocklength + 1);
+			_blocklength = 0;
+		}
+	}
+}
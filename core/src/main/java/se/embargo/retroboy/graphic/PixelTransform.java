@@ -0,0 +1,149 @@
+package se.embargo.retroboy.graphic;
+
+/**
+ * Rotates, mirrors and scales images by multiples of 90 degrees using the nearest pixel, so
+ * pixel art keeps its exact colors and palette indices.
+ *
+ * The source offset of each pixel is the sum of a column and a row term that are computed once,
+ * so applying the transform doesn't allocate or do any arithmetic beyond an addition per pixel.
+ * Rotations by 90 or 270 degrees read the input column-wise, which is done in narrow strips of
+ * output columns so that the input rows being read stay in the cache.
+ */
+public class PixelTransform {
+	/**
+	 * Width of the strips used when rows of the output are columns of the input.
+	 */
+	private static final int STRIP_WIDTH = 32;
+
+	/**
+	 * Matrix elements smaller than this are zero, e.g. the cosine of a 90 degree rotation.
+	 */
+	private static final float EPSILON = 1e-5f;
+
+	private final int _inputwidth, _inputheight, _outputwidth, _outputheight;
+
+	/**
+	 * True if the input is transposed, i.e. rotated by 90 or 270 degrees.
+	 */
+	private final boolean _transposed;
+
+	/**
+	 * Input offset of each output column and row, which are added to find the source pixel.
+	 */
+	private final int[] _columns, _rows;
+
+	/**
+	 * @param matrix		3x3 transformation matrix in row major order, e.g. from Matrix.getValues()
+	 * @param inputwidth	Width of input images
+	 * @param inputheight	Height of input images
+	 * @param outputwidth	Width of output images
+	 * @param outputheight	Height of output images
+	 */
+	public PixelTransform(float[] matrix, int inputwidth, int inputheight, int outputwidth, int outputheight) {
+		if (!isSupported(matrix)) {
+			throw new IllegalArgumentException("Only rotations by multiples of 90 degrees are supported");
+		}
+
+		_inputwidth = inputwidth;
+		_inputheight = inputheight;
+		_outputwidth = outputwidth;
+		_outputheight = outputheight;
+		_transposed = isZero(matrix[0]);
+		_columns = new int[outputwidth];
+		_rows = new int[outputheight];
+
+		// Map the center of each output pixel back onto the input
+		final double tx = matrix[2], ty = matrix[5];
+		for (int x = 0; x < outputwidth; x++) {
+			_columns[x] = _transposed ?
+				sample(x, tx, matrix[1], inputheight) * inputwidth :
+				sample(x, tx, matrix[0], inputwidth);
+		}
+
+		for (int y = 0; y < outputheight; y++) {
+			_rows[y] = _transposed ?
+				sample(y, ty, matrix[3], inputwidth) :
+				sample(y, ty, matrix[4], inputheight) * inputwidth;
+		}
+	}
+
+	/**
+	 * @return	True if the matrix only rotates by multiples of 90 degrees, mirrors, scales and translates.
+	 */
+	public static boolean isSupported(float[] matrix) {
+		if (!isZero(matrix[6]) || !isZero(matrix[7]) || !isZero(matrix[8] - 1)) {
+			return false;
+		}
+
+		return (isZero(matrix[1]) && isZero(matrix[3]) && !isZero(matrix[0]) && !isZero(matrix[4])) ||
+			   (isZero(matrix[0]) && isZero(matrix[4]) && !isZero(matrix[1]) && !isZero(matrix[3]));
+	}
+
+	public int getInputWidth() {
+		return _inputwidth;
+	}
+
+	public int getInputHeight() {
+		return _inputheight;
+	}
+
+	public int getOutputWidth() {
+		return _outputwidth;
+	}
+
+	public int getOutputHeight() {
+		return _outputheight;
+	}
+
+	/**
+	 * Transforms an image of colors.
+	 * @param input		Input pixels in row major order
+	 * @param output	Output pixels in row major order
+	 */
+	public void apply(int[] input, int[] output) {
+		final int stripwidth = _transposed ? STRIP_WIDTH : _outputwidth;
+
+		for (int sx = 0; sx < _outputwidth; sx += stripwidth) {
+			final int lastx = Math.min(sx + stripwidth, _outputwidth);
+
+			for (int y = 0; y < _outputheight; y++) {
+				final int row = _rows[y];
+				for (int x = sx, o = y * _outputwidth + sx; x < lastx; x++, o++) {
+					output[o] = input[row + _columns[x]];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Transforms an image of palette indices.
+	 * @param input		Input indices in row major order
+	 * @param output	Output indices in row major order
+	 */
+	public void apply(byte[] input, byte[] output) {
+		final int stripwidth = _transposed ? STRIP_WIDTH : _outputwidth;
+
+		for (int sx = 0; sx < _outputwidth; sx += stripwidth) {
+			final int lastx = Math.min(sx + stripwidth, _outputwidth);
+
+			for (int y = 0; y < _outputheight; y++) {
+				final int row = _rows[y];
+				for (int x = sx, o = y * _outputwidth + sx; x < lastx; x++, o++) {
+					output[o] = input[row + _columns[x]];
+				}
+			}
+		}
+	}
+
+	private static boolean isZero(float value) {
+		return Math.abs(value) < EPSILON;
+	}
+
+	/**
+	 * @return	The input coordinate of an output pixel, clamped to the input edges.
+	 */
+	private static int sample(int i, double translate, double scale, int size) {
+		final int result = (int)Math.floor((i + 0.5 - translate) / scale);
+		return Math.max(0, Math.min(result, size - 1));
+	}
+}